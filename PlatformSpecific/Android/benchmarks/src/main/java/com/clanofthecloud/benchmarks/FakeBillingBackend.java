@@ -0,0 +1,309 @@
+package com.clanofthecloud.benchmarks;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.clanofthecloud.cotcinapppurchase.iab.BillingBackend;
+import com.clanofthecloud.cotcinapppurchase.iab.IabHelper;
+import com.clanofthecloud.cotcinapppurchase.iab.Purchase;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetails;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process billing service behaving like Google Play's, for driving the plugin on a JVM:
+ * - every call takes a random time within the configured latency,
+ * - getSkuDetails refuses more than SKU_DETAILS_CHUNK_SIZE SKUs, getPurchases returns pages,
+ * - purchases are signed with the key of {@link Fixtures#publicKeyBase64()}, a purchase flow
+ *   completes as soon as the buy intent is launched, and products stay owned until consumed,
+ * - a fraction of the calls can fail with BILLING_RESPONSE_RESULT_ERROR,
+ * - the service can be killed: calls fail with a DeadObjectException, and connections are
+ *   notified of the disconnection then of the new service once it is back.
+ * Calls may come from any number of threads.
+ */
+public class FakeBillingBackend implements BillingBackend {
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	// Details of the products on sale, by SKU
+	private final Map<String, String> mSkuDetails = new ConcurrentHashMap<String, String>();
+	// Owned purchases by SKU, sorted so that pages are stable
+	private final ConcurrentSkipListMap<String, Purchase> mOwned = new ConcurrentSkipListMap<String, Purchase>();
+	// SKUs of the owned purchases, by token
+	private final Map<String, String> mOwnedTokens = new ConcurrentHashMap<String, String>();
+	// Connections bound (main thread only)
+	private final Set<Connection> mConnections = new HashSet<Connection>();
+	private final Random mReceiptRandom = new Random(42);
+	private volatile FakeService mService = new FakeService();
+	private volatile long mMinLatencyMs, mMaxLatencyMs;
+	private volatile double mErrorRate;
+	private volatile int mPageSize = 100;
+
+	private final AtomicLong mCallCount = new AtomicLong();
+	private final AtomicLong mInjectedErrorCount = new AtomicLong();
+	private final AtomicLong mDeadCallCount = new AtomicLong();
+	private final AtomicLong mDisconnectCount = new AtomicLong();
+
+	/**
+	 * @param skuDetails Details of the products on sale, as returned by getSkuDetails (e.g.
+	 *                   {@link Fixtures#skuDetails(int)}).
+	 */
+	public FakeBillingBackend(List<String> skuDetails) {
+		for (String json : skuDetails) {
+			try {
+				mSkuDetails.put(new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json).getSku(), json);
+			} catch (JSONException e) {
+				throw new IllegalArgumentException("Invalid SKU details: " + json, e);
+			}
+		}
+	}
+
+	/**
+	 * Each call to the service takes a time uniformly distributed between these bounds.
+	 */
+	public FakeBillingBackend setLatency(long minMillis, long maxMillis) {
+		mMinLatencyMs = minMillis;
+		mMaxLatencyMs = Math.max(minMillis, maxMillis);
+		return this;
+	}
+
+	/**
+	 * @param rate Fraction of the calls (0 to 1) failing with BILLING_RESPONSE_RESULT_ERROR.
+	 */
+	public FakeBillingBackend setErrorRate(double rate) {
+		mErrorRate = rate;
+		return this;
+	}
+
+	/**
+	 * @param pageSize Maximum number of purchases returned by a call to getPurchases.
+	 */
+	public FakeBillingBackend setPageSize(int pageSize) {
+		mPageSize = pageSize;
+		return this;
+	}
+
+	/**
+	 * Makes the user own a product, as if bought from another device.
+	 * @return The purchase token.
+	 */
+	public String grant(String sku) {
+		Purchase purchase = newPurchase(sku);
+		Purchase previous = mOwned.put(sku, purchase);
+		if (previous != null) {
+			mOwnedTokens.remove(previous.getToken());
+		}
+		mOwnedTokens.put(purchase.getToken(), sku);
+		return purchase.getToken();
+	}
+
+	/**
+	 * Kills the service. Calls in progress and made until it is back fail with a
+	 * DeadObjectException, as happens when the Play Store process dies or gets updated.
+	 * Can be called from any thread.
+	 * @param downMillis Time after which the service is back and connections are notified.
+	 */
+	public void kill(long downMillis) {
+		mService.mAlive = false;
+		mDisconnectCount.incrementAndGet();
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Connection connection : new ArrayList<Connection>(mConnections)) {
+					connection.onDisconnected();
+				}
+			}
+		});
+		mMainHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				if (mService.mAlive) { return; }
+				mService = new FakeService();
+				for (Connection connection : new ArrayList<Connection>(mConnections)) {
+					connection.onConnected(mService);
+				}
+			}
+		}, downMillis);
+	}
+
+	/**
+	 * @return A summary of the calls received, for reports.
+	 */
+	public String getStats() {
+		return String.format("%d calls, %d injected errors, %d calls to a dead service, %d kills",
+			mCallCount.get(), mInjectedErrorCount.get(), mDeadCallCount.get(), mDisconnectCount.get());
+	}
+
+	@Override
+	public boolean isAvailable(Context context) {
+		return true;
+	}
+
+	@Override
+	public boolean bind(Context context, final Connection connection) {
+		mConnections.add(connection);
+		final FakeService service = mService;
+		mMainHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				// If killed meanwhile, the connection will be notified when the service is back
+				if (mConnections.contains(connection) && service.mAlive) {
+					connection.onConnected(service);
+				}
+			}
+		}, mMinLatencyMs);
+		return true;
+	}
+
+	@Override
+	public void unbind(Context context, Connection connection) {
+		mConnections.remove(connection);
+	}
+
+	private Purchase newPurchase(String sku) {
+		try {
+			String receipt;
+			synchronized (mReceiptRandom) {
+				receipt = Fixtures.receipt(sku, mReceiptRandom);
+			}
+			return new Purchase(IabHelper.ITEM_TYPE_INAPP, receipt, Fixtures.sign(receipt));
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Bundle response(int code) {
+		Bundle bundle = new Bundle();
+		bundle.putInt(IabHelper.RESPONSE_CODE, code);
+		return bundle;
+	}
+
+	/**
+	 * One incarnation of the service, valid until killed.
+	 */
+	private class FakeService implements Service {
+		volatile boolean mAlive = true;
+
+		/**
+		 * Simulates the latency of the call and the failures.
+		 * @return whether the call must fail with BILLING_RESPONSE_RESULT_ERROR.
+		 */
+		private boolean call() throws RemoteException {
+			mCallCount.incrementAndGet();
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long latency = mMinLatencyMs + (long) (random.nextDouble() * (mMaxLatencyMs - mMinLatencyMs));
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DeadObjectException("Interrupted");
+			}
+			if (!mAlive) {
+				mDeadCallCount.incrementAndGet();
+				throw new DeadObjectException();
+			}
+			if (random.nextDouble() < mErrorRate) {
+				mInjectedErrorCount.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+			if (call()) { return IabHelper.BILLING_RESPONSE_RESULT_ERROR; }
+			return IabHelper.BILLING_RESPONSE_RESULT_OK;
+		}
+
+		@Override
+		public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+			if (call()) { return response(IabHelper.BILLING_RESPONSE_RESULT_ERROR); }
+			ArrayList<String> skus = skusBundle.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST);
+			if (skus == null || skus.size() > IabHelper.SKU_DETAILS_CHUNK_SIZE) {
+				return response(IabHelper.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+			}
+			ArrayList<String> details = new ArrayList<String>(skus.size());
+			for (String sku : skus) {
+				String json = mSkuDetails.get(sku);
+				if (json != null) {
+					details.add(json);
+				}
+			}
+			Bundle result = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+			result.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST, details);
+			return result;
+		}
+
+		@Override
+		public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException {
+			if (call()) { return response(IabHelper.BILLING_RESPONSE_RESULT_ERROR); }
+			if (!mSkuDetails.containsKey(sku)) {
+				return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+			}
+			if (mOwned.containsKey(sku)) {
+				return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+			}
+			Purchase purchase = newPurchase(sku);
+			if (mOwned.putIfAbsent(sku, purchase) != null) {
+				return response(IabHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+			}
+			mOwnedTokens.put(purchase.getToken(), sku);
+			// Result of the purchase flow, delivered as is to the activity that launches it
+			Intent flowResult = new Intent();
+			flowResult.putExtra(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+			flowResult.putExtra(IabHelper.RESPONSE_INAPP_PURCHASE_DATA, purchase.getOriginalJson());
+			flowResult.putExtra(IabHelper.RESPONSE_INAPP_SIGNATURE, purchase.getSignature());
+			Bundle result = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+			result.putParcelable(IabHelper.RESPONSE_BUY_INTENT, PendingIntent.getActivity(null, 0, flowResult, 0));
+			return result;
+		}
+
+		@Override
+		public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+			if (call()) { return response(IabHelper.BILLING_RESPONSE_RESULT_ERROR); }
+			// The continuation token is the last SKU of the previous page
+			Map<String, Purchase> remaining = continuationToken != null ? mOwned.tailMap(continuationToken, false) : mOwned;
+			ArrayList<String> skus = new ArrayList<String>(), data = new ArrayList<String>(), signatures = new ArrayList<String>();
+			for (Purchase purchase : remaining.values()) {
+				if (skus.size() == mPageSize) { break; }
+				skus.add(purchase.getSku());
+				data.add(purchase.getOriginalJson());
+				signatures.add(purchase.getSignature());
+			}
+			Bundle result = response(IabHelper.BILLING_RESPONSE_RESULT_OK);
+			result.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, skus);
+			result.putStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+			result.putStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+			if (skus.size() == mPageSize && mOwned.higherKey(skus.get(skus.size() - 1)) != null) {
+				result.putString(IabHelper.INAPP_CONTINUATION_TOKEN, skus.get(skus.size() - 1));
+			}
+			return result;
+		}
+
+		@Override
+		public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+			if (call()) { return IabHelper.BILLING_RESPONSE_RESULT_ERROR; }
+			String sku = mOwnedTokens.remove(purchaseToken);
+			if (sku == null) {
+				return IabHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+			}
+			mOwned.remove(sku);
+			return IabHelper.BILLING_RESPONSE_RESULT_OK;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.clanofthecloud.benchmarks;
+
+import com.clanofthecloud.cotcinapppurchase.iab.Base64;
+import com.clanofthecloud.cotcinapppurchase.iab.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data shaped like what the plugin handles in production: catalogs configured on CotC, SKU
+ * details and purchases as returned by the billing service, signed like Google Play does (with a
+ * 2048-bit RSA key generated once per JVM). Generated from a fixed seed so that runs can be
+ * compared between commits.
+ */
+public final class Fixtures {
+	public static final String PACKAGE_NAME = "com.clanofthecloud.sample";
+	// One SKU out of this many is sold as two CotC products (e.g. a regular and a promo product)
+	private static final int SHARED_SKU_EVERY = 10;
+	private static final long SEED = 42;
+	private static KeyPair sKeyPair;
+
+	private Fixtures() {}
+
+	/**
+	 * @return Google Play SKU of the n-th product of a catalog.
+	 */
+	public static String sku(int n) {
+		return String.format("%s.gems_%04d", PACKAGE_NAME, n);
+	}
+
+	/**
+	 * @param size Number of SKUs.
+	 * @return A catalog as passed by the game to listProducts (JSON array of products with
+	 * `productId` and `googlePlayId`).
+	 */
+	public static String cotcCatalog(int size) {
+		try {
+			JSONArray products = new JSONArray();
+			for (int i = 0; i < size; i++) {
+				products.put(new JSONObject().put("productId", "gems_" + i).put("googlePlayId", sku(i)));
+				if (i % SHARED_SKU_EVERY == 0) {
+					products.put(new JSONObject().put("productId", "gems_" + i + "_promo").put("googlePlayId", sku(i)));
+				}
+			}
+			return products.toString();
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param size Number of SKUs.
+	 * @return Details of the SKUs of a catalog, as returned by getSkuDetails.
+	 */
+	public static List<String> skuDetails(int size) {
+		Random random = new Random(SEED);
+		List<String> result = new ArrayList<String>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				long micros = (random.nextInt(100) * 100 + 99) * 10000L;
+				result.add(new JSONObject()
+					.put("productId", sku(i))
+					.put("type", "inapp")
+					.put("price", String.format("\u20ac%d,%02d", micros / 1000000, micros / 10000 % 100))
+					.put("price_amount_micros", micros)
+					.put("price_currency_code", "EUR")
+					.put("title", "Pack of " + (i + 1) * 10 + " gems (Sample Game)")
+					.put("description", "A pack of gems to spend in the shop. Gems never expire.")
+					.toString());
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @param count Number of purchases.
+	 * @return Purchases owned by a user, as returned by a page of getPurchases, each with a valid
+	 * signature for {@link #publicKeyBase64()}.
+	 */
+	public static List<Purchase> signedPurchases(int count) {
+		Random random = new Random(SEED);
+		List<Purchase> result = new ArrayList<Purchase>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				String receipt = receipt(sku(i), random);
+				result.add(new Purchase("inapp", receipt, sign(receipt)));
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * @param sku SKU of the product bought.
+	 * @param random Source of the order ID, time and token of the purchase.
+	 * @return Purchase data as returned by getPurchases or the purchase flow (unsigned).
+	 */
+	public static String receipt(String sku, Random random) throws JSONException {
+		return new JSONObject()
+			.put("orderId", String.format("GPA.%04d-%04d-%04d-%05d", random.nextInt(10000), random.nextInt(10000), random.nextInt(10000), random.nextInt(100000)))
+			.put("packageName", PACKAGE_NAME)
+			.put("productId", sku)
+			.put("purchaseTime", 1500000000000L + random.nextInt(1000000000))
+			.put("purchaseState", 0)
+			.put("developerPayload", "")
+			.put("purchaseToken", token(random))
+			.toString();
+	}
+
+	/**
+	 * @return The public key the purchases are signed with, as found in the Google Play console.
+	 */
+	public static String publicKeyBase64() {
+		return Base64.encode(keyPair().getPublic().getEncoded());
+	}
+
+	/**
+	 * @return The signature of data with the key of {@link #publicKeyBase64()}, as Google Play signs
+	 * purchases.
+	 */
+	public static String sign(String data) {
+		try {
+			Signature signature = Signature.getInstance("SHA1withRSA");
+			signature.initSign(keyPair().getPrivate());
+			signature.update(data.getBytes(StandardCharsets.UTF_8));
+			return Base64.encode(signature.sign());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static synchronized KeyPair keyPair() {
+		if (sKeyPair == null) {
+			try {
+				KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+				generator.initialize(2048);
+				sKeyPair = generator.generateKeyPair();
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return sKeyPair;
+	}
+
+	// Purchase tokens are opaque strings of a bit more than a hundred characters
+	private static String token(Random random) {
+		String alphabet = "abcdefghijklmnopqrstuvwxyz";
+		StringBuilder token = new StringBuilder(140);
+		for (int i = 0; i < 140; i++) {
+			token.append(i % 25 == 24 ? '.' : alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return token.toString();
+	}
+}
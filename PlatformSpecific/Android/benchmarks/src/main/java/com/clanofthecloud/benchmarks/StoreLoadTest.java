@@ -0,0 +1,332 @@
+package com.clanofthecloud.benchmarks;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.clanofthecloud.cotcinapppurchase.Store;
+import com.clanofthecloud.cotcinapppurchase.iab.IabHelper;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetailsCache;
+import com.unity3d.player.UnityPlayer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the Store with many concurrent operations against a FakeBillingBackend, and reports the
+ * throughput and the latency distribution of each kind of operation, as seen from Unity (from the
+ * call to the Store to the message sent back).
+ * The mix is made of product listings, terminations of owned purchases (one by one, or by batches
+ * of up to terminateBatch purchases) and purchases (one at a time, as the Store allows), while the
+ * billing service fails a fraction of the calls and gets killed periodically.
+ * Run with: ./gradlew :benchmarks:loadTest [-PloadTestArgs='operations=20000 concurrency=200']
+ */
+public final class StoreLoadTest {
+	private static final String GAME_OBJECT = "StoreLoadTest";
+	private static final String CB_LISTPRODUCTS = "GetInformationAboutProducts_Done";
+	private static final String CB_LAUNCHPURCHASE = "LaunchPurchase_Done";
+	private static final String CB_TERMINATEPURCHASE = "TerminatePurchase_Done";
+	private static final String CB_TERMINATEPURCHASES = "TerminatePurchases_Done";
+
+	// Options, overridable as name=value arguments
+	private final Map<String, String> mOptions = new LinkedHashMap<String, String>();
+
+	private final ConcurrentHashMap<String, Pending> mPending = new ConcurrentHashMap<String, Pending>();
+	private final Map<String, Recorder> mRecorders = new LinkedHashMap<String, Recorder>();
+	// Purchases owned and waiting to be terminated: {sku, token}
+	private final ConcurrentLinkedQueue<String[]> mOwned = new ConcurrentLinkedQueue<String[]>();
+	// SKUs owned or being purchased, so that each one is only in one of these flows at a time
+	private final Map<String, Boolean> mOwnedSkus = new ConcurrentHashMap<String, Boolean>();
+	private final Semaphore mPurchaseLane = new Semaphore(1);
+	private Semaphore mInFlight;
+	private FakeBillingBackend mBackend;
+	private int mCatalogSize;
+
+	private StoreLoadTest(String[] args) {
+		mOptions.put("operations", "10000");
+		mOptions.put("concurrency", "64");
+		mOptions.put("catalogSize", "100");
+		mOptions.put("ownedPurchases", "50");
+		mOptions.put("purchaseRatio", "0.05");
+		mOptions.put("terminateRatio", "0.25");
+		mOptions.put("terminateBatch", "1");
+		mOptions.put("minLatencyMs", "2");
+		mOptions.put("maxLatencyMs", "10");
+		mOptions.put("errorRate", "0.01");
+		mOptions.put("pageSize", "20");
+		mOptions.put("killEveryMs", "2000");
+		mOptions.put("killForMs", "100");
+		mOptions.put("productCacheTtlMs", String.valueOf(SkuDetailsCache.DEFAULT_TTL_MS));
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !mOptions.containsKey(arg.substring(0, eq))) {
+				throw new IllegalArgumentException("Unknown argument " + arg + ", expected name=value with name among " + mOptions.keySet());
+			}
+			mOptions.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new StoreLoadTest(args).run();
+	}
+
+	private int intOption(String name) { return Integer.parseInt(mOptions.get(name)); }
+	private long longOption(String name) { return Long.parseLong(mOptions.get(name)); }
+	private double doubleOption(String name) { return Double.parseDouble(mOptions.get(name)); }
+
+	private void run() throws Exception {
+		int operations = intOption("operations");
+		mCatalogSize = intOption("catalogSize");
+		System.out.println("Options: " + mOptions);
+
+		mBackend = new FakeBillingBackend(Fixtures.skuDetails(mCatalogSize))
+			.setLatency(longOption("minLatencyMs"), longOption("maxLatencyMs"))
+			.setErrorRate(doubleOption("errorRate"))
+			.setPageSize(intOption("pageSize"));
+		for (int i = 0; i < intOption("ownedPurchases"); i++) {
+			grantAny();
+		}
+		mRecorders.put(CB_LISTPRODUCTS, new Recorder(operations));
+		mRecorders.put(CB_LAUNCHPURCHASE, new Recorder(operations));
+		mRecorders.put(CB_TERMINATEPURCHASE, new Recorder(operations));
+		mRecorders.put(CB_TERMINATEPURCHASES, new Recorder(operations));
+
+		// Plugin set up as a game would, with the fake backend in place of Google Play
+		UnityPlayer.currentActivity = new Activity() {};
+		// Like Unity, messages are queued and handled on another thread
+		final ExecutorService unityThread = Executors.newSingleThreadExecutor();
+		UnityPlayer.setMessageReceiver(new UnityPlayer.MessageReceiver() {
+			@Override
+			public void onMessage(String gameObject, final String methodName, final String message) {
+				final long receivedAt = System.nanoTime();
+				unityThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						completed(methodName, message, receivedAt);
+					}
+				});
+			}
+		});
+		final CountDownLatch backendSet = new CountDownLatch(1);
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			@Override
+			public void run() {
+				IabHelper.sSetBillingBackend(mBackend);
+				backendSet.countDown();
+			}
+		});
+		backendSet.await();
+		Store.configureProductCache(longOption("productCacheTtlMs"), SkuDetailsCache.DEFAULT_MAX_ENTRIES);
+		Store.startup(GAME_OBJECT, new JSONObject().put("publicKey", Fixtures.publicKeyBase64()).toString());
+
+		ScheduledExecutorService killer = Executors.newSingleThreadScheduledExecutor();
+		final long killForMs = longOption("killForMs");
+		if (longOption("killEveryMs") > 0) {
+			killer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					mBackend.kill(killForMs);
+				}
+			}, longOption("killEveryMs"), longOption("killEveryMs"), TimeUnit.MILLISECONDS);
+		}
+
+		String catalog = Fixtures.cotcCatalog(mCatalogSize);
+		int concurrency = intOption("concurrency");
+		double purchaseRatio = doubleOption("purchaseRatio"), terminateRatio = doubleOption("terminateRatio");
+		int terminateBatch = intOption("terminateBatch");
+		mInFlight = new Semaphore(concurrency);
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			mInFlight.acquire();
+			String requestId = "r" + i;
+			double dice = ThreadLocalRandom.current().nextDouble();
+			if (dice < purchaseRatio && mPurchaseLane.tryAcquire()) {
+				String sku = reserveSku();
+				if (sku != null) {
+					begin(requestId, CB_LAUNCHPURCHASE, sku);
+					Store.launchPurchase(requestId, new JSONObject().put("productId", "gems").put("internalProductId", sku).toString());
+					continue;
+				}
+				mPurchaseLane.release();
+			}
+			String[] owned;
+			if (dice < purchaseRatio + terminateRatio && terminateBatch > 1 && (owned = mOwned.poll()) != null) {
+				// Flattened {sku, token} of each purchase of the batch
+				String[] batch = Arrays.copyOf(owned, terminateBatch * 2);
+				JSONArray params = new JSONArray();
+				int count = 0;
+				do {
+					batch[count * 2] = owned[0];
+					batch[count * 2 + 1] = owned[1];
+					params.put(new JSONObject().put("internalProductId", owned[0]).put("token", owned[1]));
+				} while (++count < terminateBatch && (owned = mOwned.poll()) != null);
+				begin(requestId, CB_TERMINATEPURCHASES, Arrays.copyOf(batch, count * 2));
+				Store.terminatePurchases(requestId, params.toString());
+			} else if (dice < purchaseRatio + terminateRatio && (owned = mOwned.poll()) != null) {
+				begin(requestId, CB_TERMINATEPURCHASE, owned);
+				Store.terminatePurchase(requestId, new JSONObject().put("internalProductId", owned[0]).put("token", owned[1]).toString());
+			} else {
+				begin(requestId, CB_LISTPRODUCTS);
+				Store.listProducts(requestId, catalog);
+			}
+		}
+		if (!mInFlight.tryAcquire(concurrency, 5, TimeUnit.MINUTES)) {
+			System.out.println("Timed out waiting for " + mPending.size() + " operations: " + mPending.keySet());
+		}
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		killer.shutdownNow();
+		unityThread.shutdown();
+
+		System.out.println(String.format("%d operations in %.2f s: %.0f ops/s",
+			operations, elapsedSeconds, operations / elapsedSeconds));
+		for (Map.Entry<String, Recorder> entry : mRecorders.entrySet()) {
+			entry.getValue().report(entry.getKey());
+		}
+		System.out.println("Billing service: " + mBackend.getStats());
+		SkuDetailsCache cache = IabHelper.sGetSkuDetailsCache();
+		System.out.println(String.format("Product cache: %d hits, %d misses", cache.getHitCount(), cache.getMissCount()));
+		System.out.println("Metrics: " + Store.getMetrics());
+	}
+
+	/**
+	 * @return A SKU that is neither owned nor being purchased, now reserved. Null if none is found.
+	 */
+	private String reserveSku() {
+		for (int attempt = 0; attempt < 10; attempt++) {
+			String sku = Fixtures.sku(ThreadLocalRandom.current().nextInt(mCatalogSize));
+			if (mOwnedSkus.put(sku, Boolean.TRUE) == null) {
+				return sku;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Makes the user own a product, as if bought on another device.
+	 */
+	private void grantAny() {
+		String sku = reserveSku();
+		if (sku != null) {
+			mOwned.add(new String[] { sku, mBackend.grant(sku) });
+		}
+	}
+
+	private void begin(String requestId, String callback, String... owned) {
+		mPending.put(requestId, new Pending(callback, System.nanoTime(), owned));
+	}
+
+	private void completed(String methodName, String message, long end) {
+		try {
+			JSONObject result = new JSONObject(message);
+			Pending pending = mPending.remove(result.getString("requestId"));
+			if (pending == null || !pending.callback.equals(methodName)) {
+				throw new IllegalStateException("Unexpected message " + methodName + ": " + message);
+			}
+			int error = result.optInt("error");
+			// A listing with chunks in error is only partially successful, report it as failed
+			JSONArray partialErrors = result.optJSONArray("errors");
+			if (error == 0 && partialErrors != null && partialErrors.length() > 0) {
+				error = partialErrors.getJSONObject(0).getInt("error");
+			}
+			mRecorders.get(methodName).record(end - pending.startNanos, error);
+			if (methodName.equals(CB_LAUNCHPURCHASE)) {
+				if (error == 0) {
+					mOwned.add(new String[] { result.getString("internalProductId"), result.getString("token") });
+				} else {
+					mOwnedSkus.remove(pending.owned[0]);
+				}
+				mPurchaseLane.release();
+			} else if (methodName.equals(CB_TERMINATEPURCHASE)) {
+				terminated(pending.owned[0], error == 0);
+			} else if (methodName.equals(CB_TERMINATEPURCHASES)) {
+				JSONArray results = result.optJSONArray("results");
+				for (int i = 0; i < pending.owned.length / 2; i++) {
+					terminated(pending.owned[i * 2], error == 0 && !results.getJSONObject(i).has("error"));
+				}
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException("Invalid message " + methodName + ": " + message, e);
+		} finally {
+			mInFlight.release();
+		}
+	}
+
+	private void terminated(String sku, boolean consumed) {
+		if (consumed) {
+			// Keep the number of owned products steady
+			mOwnedSkus.remove(sku);
+			grantAny();
+		} else {
+			// Retried later, with a fresh token in case the failure has consumed it
+			mOwned.add(new String[] { sku, mBackend.grant(sku) });
+		}
+	}
+
+	private static final class Pending {
+		final String callback;
+		final long startNanos;
+		// SKU and token of the purchases terminated, or SKU being purchased
+		final String[] owned;
+
+		Pending(String callback, long startNanos, String[] owned) {
+			this.callback = callback;
+			this.startNanos = startNanos;
+			this.owned = owned;
+		}
+	}
+
+	/**
+	 * Latencies and outcomes of one kind of operation.
+	 */
+	private static final class Recorder {
+		private final long[] mLatencies;
+		private final AtomicInteger mCount = new AtomicInteger();
+		private final Map<Integer, AtomicInteger> mErrors = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+		Recorder(int capacity) {
+			mLatencies = new long[capacity];
+		}
+
+		void record(long latencyNanos, int error) {
+			mLatencies[mCount.getAndIncrement()] = latencyNanos;
+			if (error != 0) {
+				AtomicInteger count = mErrors.get(error);
+				if (count == null) {
+					mErrors.putIfAbsent(error, new AtomicInteger());
+					count = mErrors.get(error);
+				}
+				count.incrementAndGet();
+			}
+		}
+
+		void report(String name) {
+			int count = mCount.get();
+			if (count == 0) { return; }
+			long[] sorted = Arrays.copyOf(mLatencies, count);
+			Arrays.sort(sorted);
+			System.out.println(String.format("%s: %d, latency ms p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f, errors %s",
+				name, count, percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+				percentile(sorted, 0.999), sorted[count - 1] / 1e6, new TreeMap<Integer, AtomicInteger>(mErrors)));
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+		}
+	}
+}
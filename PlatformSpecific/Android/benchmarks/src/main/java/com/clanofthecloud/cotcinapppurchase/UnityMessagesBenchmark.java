@@ -0,0 +1,87 @@
+package com.clanofthecloud.cotcinapppurchase;
+
+import com.clanofthecloud.benchmarks.Fixtures;
+import com.clanofthecloud.cotcinapppurchase.iab.IabHelper;
+import com.clanofthecloud.cotcinapppurchase.iab.ProductList;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetails;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answer to listProducts: indexing the catalog passed by the game, and writing the product list
+ * sent back to Unity. Building the message as a JSONObject tree enriched by a nested loop, as
+ * done previously, is measured as a reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnityMessagesBenchmark {
+	// Number of SKUs in the catalog
+	@Param({"10", "100", "1000", "5000"})
+	public int size;
+
+	private String catalogJson;
+	private ProductCatalog catalog;
+	private ProductList productList;
+
+	@Setup
+	public void setUp() throws JSONException {
+		catalogJson = Fixtures.cotcCatalog(size);
+		catalog = ProductCatalog.parse(catalogJson);
+		List<SkuDetails> details = new ArrayList<SkuDetails>(size);
+		for (String json : Fixtures.skuDetails(size)) {
+			details.add(new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json));
+		}
+		productList = new ProductList(details, null);
+	}
+
+	@Benchmark
+	public ProductCatalog indexCatalog() throws JSONException {
+		return ProductCatalog.parse(catalogJson);
+	}
+
+	@Benchmark
+	public String productListMessage() {
+		return UnityMessages.writeProductList(productList, catalog).endObject().toStringAndRelease();
+	}
+
+	@Benchmark
+	public String productListMessageJsonTree() throws JSONException {
+		JSONArray products = new JSONArray(catalogJson);
+		JSONArray values = new JSONArray();
+		for (SkuDetails d : productList.getProducts()) {
+			JSONObject p = new JSONObject();
+			p.put("internalProductId", d.getSku());
+			p.put("price", d.getPriceAmount());
+			p.put("currency", d.getPriceCurrency());
+			for (int j = 0; j < products.length(); j++) {
+				JSONObject product = products.getJSONObject(j);
+				if (d.getSku().equals(product.getString("googlePlayId"))) {
+					p.put("productId", product.getString("productId"));
+				}
+			}
+			values.put(p);
+		}
+		return new JSONObject().put("products", values).toString();
+	}
+}
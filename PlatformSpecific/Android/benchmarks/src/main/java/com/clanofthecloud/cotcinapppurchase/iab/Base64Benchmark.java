@@ -0,0 +1,76 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of Base64 data such as purchase signatures (256 bytes for a 2048-bit RSA key).
+ * Compares the historical path (decode(String), going through decode4to3 and allocating), the
+ * decoding into a caller-provided buffer, and java.util.Base64 as a reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+	// Decoded size in bytes
+	@Param({"256", "4096"})
+	public int size;
+
+	private String encoded;
+	private byte[] encodedBytes;
+	private ByteBuffer encodedBuffer;
+	private byte[] output;
+
+	@Setup
+	public void setUp() {
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		encoded = java.util.Base64.getEncoder().encodeToString(data);
+		encodedBytes = encoded.getBytes(StandardCharsets.US_ASCII);
+		encodedBuffer = ByteBuffer.wrap(encodedBytes);
+		output = new byte[Base64.maxDecodedLength(encoded.length())];
+	}
+
+	@Benchmark
+	public byte[] legacyDecodeString() throws Base64DecoderException {
+		return Base64.decode(encoded);
+	}
+
+	@Benchmark
+	public int decodeCharSequenceIntoBuffer() throws Base64DecoderException {
+		return Base64.decode(encoded, output, 0);
+	}
+
+	@Benchmark
+	public int decodeByteBufferIntoBuffer() throws Base64DecoderException {
+		encodedBuffer.rewind();
+		return Base64.decode(encodedBuffer, output, 0);
+	}
+
+	@Benchmark
+	public byte[] jdkDecodeString() {
+		return java.util.Base64.getDecoder().decode(encoded);
+	}
+
+	@Benchmark
+	public int jdkDecodeIntoBuffer() {
+		return java.util.Base64.getDecoder().decode(encodedBytes, output);
+	}
+}
@@ -0,0 +1,90 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import com.clanofthecloud.benchmarks.Fixtures;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a whole getSkuDetails response and of owned purchases, as done by IabHelper. The
+ * full JSONObject decoding previously done by the constructors is measured as a reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+	// Number of products in the catalog, or of purchases owned
+	@Param({"10", "100", "1000", "5000"})
+	public int size;
+
+	private List<String> skuDetails;
+	private List<String> receipts, signatures;
+
+	@Setup
+	public void setUp() {
+		skuDetails = Fixtures.skuDetails(size);
+		receipts = new ArrayList<String>(size);
+		signatures = new ArrayList<String>(size);
+		for (Purchase p : Fixtures.signedPurchases(size)) {
+			receipts.add(p.getOriginalJson());
+			signatures.add(p.getSignature());
+		}
+	}
+
+	@Benchmark
+	public void skuDetails(Blackhole bh) throws JSONException {
+		for (String json : skuDetails) {
+			SkuDetails d = new SkuDetails(IabHelper.ITEM_TYPE_INAPP, json);
+			bh.consume(d.getSku());
+			bh.consume(d.getPriceAmount());
+			bh.consume(d.getPriceCurrency());
+		}
+	}
+
+	@Benchmark
+	public void skuDetailsJsonObject(Blackhole bh) throws JSONException {
+		for (String json : skuDetails) {
+			JSONObject o = new JSONObject(json);
+			bh.consume(o.optString("productId"));
+			bh.consume(o.optLong("price_amount_micros") / 1000000.0);
+			bh.consume(o.optString("price_currency_code"));
+		}
+	}
+
+	@Benchmark
+	public void purchases(Blackhole bh) throws JSONException {
+		for (int i = 0; i < size; i++) {
+			Purchase p = new Purchase(IabHelper.ITEM_TYPE_INAPP, receipts.get(i), signatures.get(i));
+			bh.consume(p.getSku());
+			bh.consume(p.getToken());
+		}
+	}
+
+	@Benchmark
+	public void purchasesJsonObject(Blackhole bh) throws JSONException {
+		for (String json : receipts) {
+			JSONObject o = new JSONObject(json);
+			bh.consume(o.optString("productId"));
+			bh.consume(o.optString("token", o.optString("purchaseToken")));
+		}
+	}
+}
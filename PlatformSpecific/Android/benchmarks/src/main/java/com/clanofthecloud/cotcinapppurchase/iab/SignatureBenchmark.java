@@ -0,0 +1,66 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import com.clanofthecloud.benchmarks.Fixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verification of the signature of a page of owned purchases: Security.verifyPurchase (which
+ * parses the key every time) against the ReceiptVerifier, one by one and as a parallel batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+	// Number of purchases in the page
+	@Param({"1", "20", "100"})
+	public int count;
+
+	private String publicKey;
+	private List<Purchase> purchases;
+	private ReceiptVerifier verifier;
+
+	@Setup
+	public void setUp() {
+		purchases = Fixtures.signedPurchases(count);
+		publicKey = Fixtures.publicKeyBase64();
+		verifier = new ReceiptVerifier();
+		verifier.setPublicKey(publicKey);
+	}
+
+	@Benchmark
+	public void securityVerifyPurchase(Blackhole bh) {
+		for (Purchase p : purchases) {
+			bh.consume(Security.verifyPurchase(publicKey, p.getOriginalJson(), p.getSignature()));
+		}
+	}
+
+	@Benchmark
+	public void receiptVerifier(Blackhole bh) {
+		for (Purchase p : purchases) {
+			bh.consume(verifier.verify(p));
+		}
+	}
+
+	@Benchmark
+	public List<Purchase> receiptVerifierBatch() {
+		return verifier.filterVerified(purchases);
+	}
+}
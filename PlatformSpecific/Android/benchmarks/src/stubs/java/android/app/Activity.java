@@ -0,0 +1,46 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. Activities started for a
+ * result complete right away: the intent they were started with is delivered back as their
+ * result, as if the user had gone through them.
+ */
+public class Activity extends Context {
+	public static final int RESULT_CANCELED = 0;
+	public static final int RESULT_OK = -1;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	@Override
+	public String getPackageName() {
+		return getClass().getPackage().getName();
+	}
+
+	public final void runOnUiThread(Runnable action) {
+		if (Looper.getMainLooper().isCurrentThread()) {
+			action.run();
+		} else {
+			mHandler.post(action);
+		}
+	}
+
+	public void startIntentSenderForResult(final IntentSender intent, final int requestCode, Intent fillInIntent,
+		int flagsMask, int flagsValues, int extraFlags) throws IntentSender.SendIntentException {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				onActivityResult(requestCode, RESULT_OK, intent.getIntent());
+			}
+		});
+	}
+
+	public void finish() {}
+
+	protected void onActivityResult(int requestCode, int resultCode, Intent data) {}
+}
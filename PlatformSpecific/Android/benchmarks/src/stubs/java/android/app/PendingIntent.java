@@ -0,0 +1,25 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Parcelable;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public final class PendingIntent implements Parcelable {
+	private final Intent mIntent;
+
+	private PendingIntent(Intent intent) {
+		mIntent = intent;
+	}
+
+	public static PendingIntent getActivity(Context context, int requestCode, Intent intent, int flags) {
+		return new PendingIntent(intent);
+	}
+
+	public IntentSender getIntentSender() {
+		return new IntentSender(mIntent);
+	}
+}
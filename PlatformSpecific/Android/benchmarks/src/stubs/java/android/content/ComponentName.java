@@ -0,0 +1,16 @@
+package android.content;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public final class ComponentName {
+	private final String mPackage, mClass;
+
+	public ComponentName(String pkg, String cls) {
+		mPackage = pkg;
+		mClass = cls;
+	}
+
+	public String getPackageName() { return mPackage; }
+	public String getClassName() { return mClass; }
+}
@@ -0,0 +1,41 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. No service can be bound.
+ */
+public abstract class Context {
+	public static final int BIND_AUTO_CREATE = 1;
+
+	private final PackageManager mPackageManager = new PackageManager();
+
+	public abstract String getPackageName();
+
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	public PackageManager getPackageManager() {
+		return mPackageManager;
+	}
+
+	/**
+	 * @return A directory in the temporary directory, shared by all contexts of the process.
+	 */
+	public File getFilesDir() {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "cotc-benchmarks-files");
+		dir.mkdirs();
+		return dir;
+	}
+
+	public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+		return false;
+	}
+
+	public void unbindService(ServiceConnection conn) {
+		throw new IllegalArgumentException("Service not registered: " + conn);
+	}
+}
@@ -0,0 +1,62 @@
+package android.content;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class Intent implements Parcelable {
+	private String mAction;
+	private String mPackage;
+	private Bundle mExtras;
+
+	public Intent() {}
+
+	public Intent(String action) {
+		mAction = action;
+	}
+
+	public Intent(Context packageContext, Class<?> cls) {}
+
+	public String getAction() { return mAction; }
+
+	public Intent setPackage(String packageName) {
+		mPackage = packageName;
+		return this;
+	}
+
+	public String getPackage() { return mPackage; }
+
+	public Intent putExtra(String name, String value) {
+		extras().putString(name, value);
+		return this;
+	}
+
+	public Intent putExtra(String name, int value) {
+		extras().putInt(name, value);
+		return this;
+	}
+
+	public String getStringExtra(String name) {
+		return mExtras != null ? mExtras.getString(name) : null;
+	}
+
+	public int getIntExtra(String name, int defaultValue) {
+		return mExtras != null ? mExtras.getInt(name, defaultValue) : defaultValue;
+	}
+
+	/**
+	 * @return The extras, or null if none have been added.
+	 */
+	public Bundle getExtras() {
+		return mExtras;
+	}
+
+	private Bundle extras() {
+		if (mExtras == null) {
+			mExtras = new Bundle();
+		}
+		return mExtras;
+	}
+}
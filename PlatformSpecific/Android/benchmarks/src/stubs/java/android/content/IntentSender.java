@@ -0,0 +1,27 @@
+package android.content;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. Holds the intent of the
+ * PendingIntent it comes from, which is what the target activity would receive.
+ */
+public class IntentSender {
+	public static class SendIntentException extends Exception {
+		public SendIntentException() {}
+
+		public SendIntentException(String message) {
+			super(message);
+		}
+	}
+
+	private final Intent mIntent;
+
+	/** Stub only. */
+	public IntentSender(Intent intent) {
+		mIntent = intent;
+	}
+
+	/** Stub only. */
+	public Intent getIntent() {
+		return mIntent;
+	}
+}
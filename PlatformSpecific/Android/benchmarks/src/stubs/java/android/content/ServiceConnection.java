@@ -0,0 +1,11 @@
+package android.content;
+
+import android.os.IBinder;
+
+/**
+ * Stub of the Android interface, for running plugin code on a desktop JVM.
+ */
+public interface ServiceConnection {
+	void onServiceConnected(ComponentName name, IBinder service);
+	void onServiceDisconnected(ComponentName name);
+}
@@ -0,0 +1,16 @@
+package android.content.pm;
+
+import android.content.Intent;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. No application is
+ * installed besides ours: no intent can be resolved.
+ */
+public class PackageManager {
+	public List<ResolveInfo> queryIntentServices(Intent intent, int flags) {
+		return Collections.emptyList();
+	}
+}
@@ -0,0 +1,7 @@
+package android.content.pm;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class ResolveInfo {
+}
@@ -0,0 +1,46 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class Bundle {
+	private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+	public boolean containsKey(String key) { return mMap.containsKey(key); }
+	public Object get(String key) { return mMap.get(key); }
+	public Set<String> keySet() { return mMap.keySet(); }
+
+	public void putInt(String key, int value) { mMap.put(key, value); }
+	public int getInt(String key) { return getInt(key, 0); }
+	public int getInt(String key, int defaultValue) {
+		Object value = mMap.get(key);
+		return value instanceof Integer ? (Integer) value : defaultValue;
+	}
+
+	public void putString(String key, String value) { mMap.put(key, value); }
+	public String getString(String key) {
+		Object value = mMap.get(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	public void putStringArrayList(String key, ArrayList<String> value) { mMap.put(key, value); }
+	@SuppressWarnings("unchecked")
+	public ArrayList<String> getStringArrayList(String key) {
+		return (ArrayList<String>) mMap.get(key);
+	}
+
+	public void putParcelable(String key, Parcelable value) { mMap.put(key, value); }
+	@SuppressWarnings("unchecked")
+	public <T extends Parcelable> T getParcelable(String key) {
+		return (T) mMap.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return "Bundle" + mMap;
+	}
+}
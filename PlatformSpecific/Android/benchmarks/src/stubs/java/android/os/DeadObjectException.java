@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class DeadObjectException extends RemoteException {
+	public DeadObjectException() {}
+
+	public DeadObjectException(String message) {
+		super(message);
+	}
+}
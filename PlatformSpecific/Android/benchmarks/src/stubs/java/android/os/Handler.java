@@ -0,0 +1,57 @@
+package android.os;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. All handlers post to the
+ * main looper, which is what the plugin does on devices (handlers are created on the UI thread).
+ */
+public class Handler {
+	private final Looper mLooper;
+	// Runnables posted and not run yet, so that they can be removed
+	private final Map<Runnable, Future<?>> mPending = new IdentityHashMap<Runnable, Future<?>>();
+
+	public Handler() {
+		this(Looper.getMainLooper());
+	}
+
+	public Handler(Looper looper) {
+		mLooper = looper;
+	}
+
+	public Looper getLooper() {
+		return mLooper;
+	}
+
+	public boolean post(Runnable r) {
+		return postDelayed(r, 0);
+	}
+
+	public boolean postDelayed(final Runnable r, long delayMillis) {
+		synchronized (mPending) {
+			mPending.put(r, mLooper.mQueue.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (mPending) {
+						mPending.remove(r);
+					}
+					r.run();
+				}
+			}, Math.max(0, delayMillis), TimeUnit.MILLISECONDS));
+		}
+		return true;
+	}
+
+	public void removeCallbacks(Runnable r) {
+		Future<?> pending;
+		synchronized (mPending) {
+			pending = mPending.remove(r);
+		}
+		if (pending != null) {
+			pending.cancel(false);
+		}
+	}
+}
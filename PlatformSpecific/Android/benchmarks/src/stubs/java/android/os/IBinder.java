@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * Stub of the Android interface, for running plugin code on a desktop JVM.
+ */
+public interface IBinder {
+}
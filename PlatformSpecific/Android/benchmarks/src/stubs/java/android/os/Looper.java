@@ -0,0 +1,43 @@
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM. There is a single looper,
+ * the main one, backed by a daemon thread named "main".
+ */
+public final class Looper {
+	private static final Looper sMainLooper = new Looper();
+
+	final ScheduledThreadPoolExecutor mQueue;
+	private volatile Thread mThread;
+
+	private Looper() {
+		mQueue = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "main");
+				t.setDaemon(true);
+				mThread = t;
+				return t;
+			}
+		});
+		mQueue.setRemoveOnCancelPolicy(true);
+	}
+
+	public static Looper getMainLooper() {
+		return sMainLooper;
+	}
+
+	/**
+	 * @return The main looper when called from the main thread, null otherwise.
+	 */
+	public static Looper myLooper() {
+		return sMainLooper.isCurrentThread() ? sMainLooper : null;
+	}
+
+	public boolean isCurrentThread() {
+		return Thread.currentThread() == mThread;
+	}
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class RemoteException extends Exception {
+	public RemoteException() {}
+
+	public RemoteException(String message) {
+		super(message);
+	}
+}
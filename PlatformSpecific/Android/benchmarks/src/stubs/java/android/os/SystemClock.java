@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public final class SystemClock {
+	private SystemClock() {}
+
+	public static long elapsedRealtime() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,10 @@
+package android.text;
+
+/**
+ * Stub of the Android class, for running plugin code on a desktop JVM.
+ */
+public class TextUtils {
+	public static boolean isEmpty(CharSequence str) {
+		return str == null || str.length() == 0;
+	}
+}
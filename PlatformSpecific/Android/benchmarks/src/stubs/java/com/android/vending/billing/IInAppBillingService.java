@@ -0,0 +1,23 @@
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+/**
+ * Stub of the AIDL interface of the Google Play billing service, for running plugin code on a
+ * desktop JVM. The service never exists there.
+ */
+public interface IInAppBillingService {
+	int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException;
+	Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException;
+	Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException;
+	Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException;
+	int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException;
+
+	abstract class Stub implements IInAppBillingService {
+		public static IInAppBillingService asInterface(IBinder obj) {
+			throw new UnsupportedOperationException("No billing service on this JVM");
+		}
+	}
+}
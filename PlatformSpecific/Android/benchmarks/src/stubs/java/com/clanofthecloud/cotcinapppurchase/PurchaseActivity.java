@@ -0,0 +1,48 @@
+package com.clanofthecloud.cotcinapppurchase;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Stands in for the real PurchaseActivity, which needs the Android framework. Goes through the
+ * same callbacks: created, then the result of the purchase flow, then stopped.
+ */
+public class PurchaseActivity extends Activity {
+	interface ActivityListener {
+		void wasCreated(PurchaseActivity activity);
+		void gotActivityResult(int requestCode, int resultCode, Intent data);
+		void wasStopped();
+	}
+
+	private final ActivityListener mListener;
+	private boolean mStopped;
+
+	private PurchaseActivity(ActivityListener listener) {
+		mListener = listener;
+	}
+
+	static void startActivity(Activity parent, ActivityListener listener) {
+		final PurchaseActivity activity = new PurchaseActivity(listener);
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			@Override
+			public void run() {
+				activity.mListener.wasCreated(activity);
+			}
+		});
+	}
+
+	void stopActivity() {
+		if (!mStopped) {
+			mStopped = true;
+			mListener.wasStopped();
+		}
+	}
+
+	@Override
+	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+		mListener.gotActivityResult(requestCode, resultCode, data);
+		stopActivity();
+	}
+}
@@ -0,0 +1,28 @@
+package com.unity3d.player;
+
+import android.app.Activity;
+
+/**
+ * Stub of the Unity class, for running plugin code on a desktop JVM. Messages sent to Unity are
+ * handed to the receiver set by the test, if any.
+ */
+public class UnityPlayer {
+	public interface MessageReceiver {
+		void onMessage(String gameObject, String methodName, String message);
+	}
+
+	public static Activity currentActivity;
+	private static volatile MessageReceiver sReceiver;
+
+	/** Stub only. */
+	public static void setMessageReceiver(MessageReceiver receiver) {
+		sReceiver = receiver;
+	}
+
+	public static void UnitySendMessage(String gameObject, String methodName, String message) {
+		MessageReceiver receiver = sReceiver;
+		if (receiver != null) {
+			receiver.onMessage(gameObject, methodName, message);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.clanofthecloud.cotcinapppurchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Products as configured on CotC, indexed by Google Play SKU. Several CotC products may be sold
+ * as the same Google Play SKU. Catalogs are immutable and kept per JSON description, so that
+ * listing the same products again does not decode and index them again.
+ */
+class ProductCatalog {
+	// Games usually list one or two catalogs (e.g. the shop and a special offer)
+	private static final int MAX_CACHED_CATALOGS = 4;
+	private static final LinkedHashMap<String, ProductCatalog> sCatalogs = new LinkedHashMap<String, ProductCatalog>(8, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ProductCatalog> eldest) {
+			return size() > MAX_CACHED_CATALOGS;
+		}
+	};
+
+	// Distinct SKUs, in the order they appear in the catalog
+	private final ArrayList<String> mSkus = new ArrayList<String>();
+	private final HashMap<String, List<String>> mProductIds = new HashMap<String, List<String>>();
+
+	private ProductCatalog(JSONArray products) throws JSONException {
+		for (int i = 0; i < products.length(); i++) {
+			JSONObject product = products.getJSONObject(i);
+			String sku = product.getString("googlePlayId");
+			List<String> productIds = mProductIds.get(sku);
+			if (productIds == null) {
+				productIds = new ArrayList<String>(1);
+				mProductIds.put(sku, productIds);
+				mSkus.add(sku);
+			}
+			String productId = product.optString("productId", null);
+			if (productId != null && !productIds.contains(productId)) {
+				productIds.add(productId);
+			}
+		}
+	}
+
+	/**
+	 * Can be called from any thread.
+	 * @param paramsJson JSON array of products as configured on CotC, each containing at least
+	 *                   `googlePlayId` and `productId`.
+	 * @return The catalog, indexed only the first time this description is seen.
+	 */
+	static ProductCatalog fromJson(String paramsJson) throws JSONException {
+		synchronized (sCatalogs) {
+			ProductCatalog cached = sCatalogs.get(paramsJson);
+			if (cached != null) { return cached; }
+		}
+		ProductCatalog catalog = parse(paramsJson);
+		synchronized (sCatalogs) {
+			sCatalogs.put(paramsJson, catalog);
+		}
+		return catalog;
+	}
+
+	/**
+	 * Same as fromJson, without going through the cache.
+	 */
+	static ProductCatalog parse(String paramsJson) throws JSONException {
+		return new ProductCatalog(new JSONArray(paramsJson));
+	}
+
+	/**
+	 * @return Distinct Google Play SKUs of the catalog, to be queried to the store.
+	 */
+	ArrayList<String> getSkus() {
+		return new ArrayList<String>(mSkus);
+	}
+
+	/**
+	 * @param sku Google Play SKU.
+	 * @return IDs of the CotC products sold under this SKU, empty if none.
+	 */
+	List<String> getProductIds(String sku) {
+		List<String> productIds = mProductIds.get(sku);
+		return productIds != null ? productIds : Collections.<String>emptyList();
+	}
+}
@@ -3,22 +3,27 @@ package com.clanofthecloud.cotcinapppurchase;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
-import android.util.Log;
 
 /**
- * We use this activity in order to simplify the integration.
+ * We use this activity in order to simplify the integration: it receives the result of the
+ * purchase flow, so that the game does not need to forward it from its own activity.
+ * It is a translucent trampoline without any layout, started once the buy intent is ready: it
+ * starts the purchase sheet of Google Play as soon as it is created and finishes when the
+ * result comes back.
  */
 public class PurchaseActivity extends Activity {
 
 	interface ActivityListener {
+		/** Called once the activity can start the purchase sheet. */
 		void wasCreated(PurchaseActivity activity);
 		void gotActivityResult(int requestCode, int resultCode, Intent data);
+		/** Called when the activity goes away, whether a result has been received or not. */
 		void wasStopped();
 	}
 
 	static Activity parent;
 	static ActivityListener listener;
-	private boolean googleStoreHasBeenShown = false, alreadyStopped = false;
+	private boolean alreadyStopped = false;
 
 	static void startActivity(Activity parent, ActivityListener listener) {
 		Intent intent = new Intent(parent, PurchaseActivity.class);
@@ -37,14 +42,11 @@ public class PurchaseActivity extends Activity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-
-		setContentView(R.layout.activity_purchase);
-	}
-
-	@Override
-	protected void onPostCreate(Bundle savedInstanceState) {
-		super.onPostCreate(savedInstanceState);
-		if (listener != null) {
+		if (listener == null) {
+			// Restored after the process was killed, nobody is waiting for the purchase anymore
+			stopActivity();
+		} else if (savedInstanceState == null) {
+			// When recreated, the purchase sheet is already shown and will deliver its result here
 			listener.wasCreated(this);
 		}
 	}
@@ -55,31 +57,18 @@ public class PurchaseActivity extends Activity {
 		if (listener != null) {
 			listener.gotActivityResult(requestCode, resultCode, data);
 		}
-		onDestroy();
+		stopActivity();
 	}
 
 	@Override
-	protected void onPause() {
-		super.onPause();
-		// Our activity stops when the Google Play store is shown
-		googleStoreHasBeenShown = true;
-	}
-
-	@Override
-	protected void onResume() {
-		super.onResume();
-		// This means that the Google dialog has finished
-		if (googleStoreHasBeenShown) {
-			stopActivity();
-		}
-	}
-
-	@Override
-	protected void onStop() {
-		super.onStop();
+	protected void onDestroy() {
+		super.onDestroy();
 		// So here we're back to the unity activity, UnitySendMessage can be used again
-		if (listener != null) {
-			listener.wasStopped();
+		if (isFinishing() && listener != null) {
+			ActivityListener stopped = listener;
+			listener = null;
+			parent = null;
+			stopped.wasStopped();
 		}
 	}
 }
@@ -3,8 +3,16 @@ package com.clanofthecloud.cotcinapppurchase;
 import android.content.Intent;
 import android.util.Log;
 
+import com.clanofthecloud.cotcinapppurchase.iab.BillingMetrics;
+import com.clanofthecloud.cotcinapppurchase.iab.BuyIntent;
+import com.clanofthecloud.cotcinapppurchase.iab.ConsumeResult;
 import com.clanofthecloud.cotcinapppurchase.iab.ErrorCode;
 import com.clanofthecloud.cotcinapppurchase.iab.IabResult;
+import com.clanofthecloud.cotcinapppurchase.iab.JsonWriter;
+import com.clanofthecloud.cotcinapppurchase.iab.ProductList;
+import com.clanofthecloud.cotcinapppurchase.iab.Purchase;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetails;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetailsCache;
 import com.unity3d.player.UnityPlayer;
 import com.clanofthecloud.cotcinapppurchase.iab.IabHelper;
 
@@ -13,6 +21,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Main class interfacing the plugin.
@@ -25,6 +36,11 @@ public class Store {
 	private static String CB_LISTPRODUCTS = "GetInformationAboutProducts_Done";
 	private static String CB_LAUNCHPURCHASE = "LaunchPurchase_Done";
 	private static String CB_TERMINATEPURCHASE = "TerminatePurchase_Done";
+	private static String CB_TERMINATEPURCHASES = "TerminatePurchases_Done";
+	private static String CB_PENDINGPURCHASES = "PendingPurchases_Found";
+	private static String CB_PRODUCTSUPDATED = "GetInformationAboutProducts_Updated";
+	// Requests currently in progress (by ID, as passed by the caller) with their callback
+	private static final ConcurrentHashMap<String, String> inFlightRequests = new ConcurrentHashMap<String, String>();
 
 	/**
 	 * Call this at startup in order to be able to make in-app payments through CotC.
@@ -36,6 +52,156 @@ public class Store {
 		Store.gameObjectName = gameObjectName;
 	}
 
+	/**
+	 * Same as startup(gameObjectName), with additional options.
+	 * @param gameObjectName Name of the game object to send a message to when a result is to be
+	 *                       posted.
+	 * @param optionsJson JSON object with the following optional keys:
+	 *                    - `warmUp` (boolean): start connecting to the billing service right away
+	 *                    in the background, so that the first operation does not have to wait.
+	 *                    - `publicKey` (string): see setPublicKey.
+	 *                    - `recoverPendingPurchases` (boolean): see recoverPendingPurchases.
+	 *                    - `productSnapshot` (boolean): persist the product details on disk, so that
+	 *                    listProducts can answer right away after a cold start (see listProducts).
+	 */
+	public static void startup(String gameObjectName, String optionsJson) {
+		startup(gameObjectName);
+		try {
+			JSONObject options = new JSONObject(optionsJson);
+			if (options.optBoolean("productSnapshot")) {
+				IabHelper.sEnableSkuDetailsSnapshot(UnityPlayer.currentActivity.getFilesDir());
+			}
+			if (options.optBoolean("warmUp")) {
+				IabHelper.warmUp(UnityPlayer.currentActivity);
+			}
+			if (options.has("publicKey")) {
+				setPublicKey(options.getString("publicKey"));
+			}
+			// After the public key, so that forged purchases are not reported
+			if (options.optBoolean("recoverPendingPurchases")) {
+				recoverPendingPurchases();
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Decoding startup options JSON", e);
+		}
+	}
+
+	/**
+	 * Enables the verification of purchase signatures on the device. Purchases that have not been
+	 * signed by Google Play are then rejected before being reported, which spares the server from
+	 * validating receipts forged by modified clients. The server must still validate receipts.
+	 * @param base64PublicKey The license key of the application, as found in the Google Play
+	 *                        console (base64-encoded). Pass null to disable the verification.
+	 */
+	public static void setPublicKey(String base64PublicKey) {
+		try {
+			IabHelper.sGetReceiptVerifier().setPublicKey(base64PublicKey);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Invalid public key, purchases will not be verified", e);
+			IabHelper.sGetReceiptVerifier().setPublicKey(null);
+		}
+	}
+
+	/**
+	 * Looks in the background for purchases that have been paid for but never terminated (e.g. the
+	 * game was killed between LaunchPurchase_Done and terminatePurchase), so that they can be
+	 * validated and terminated in bulk.
+	 * Calls back PendingPurchases_Found once with all of them, as `purchases` with the same members
+	 * as the result of launchPurchase (except `productId`, `price` and `currency`, not known at this
+	 * point). Nothing is sent if there are none or if they could not be listed.
+	 */
+	public static void recoverPendingPurchases() {
+		IabHelper.getHandler(UnityPlayer.currentActivity, new IabHelper.SetupListener() {
+			@Override
+			public void onDone(IabHelper handler, IabResult result) {
+				if (handler == null) {
+					Log.w(TAG, "Can not recover pending purchases: " + result);
+					return;
+				}
+
+				handler.refreshInventory(new IabHelper.CloudResultListener<List<Purchase>>() {
+					@Override
+					public void onDone(List<Purchase> purchases) {
+						Log.v(TAG, purchases.size() + " pending purchases found");
+						if (!purchases.isEmpty()) {
+							sendToUnity(CB_PENDINGPURCHASES, null, UnityMessages.writePurchases(purchases));
+						}
+					}
+
+					@Override
+					public void onError(ErrorCode code, String description) {
+						Log.w(TAG, "Can not recover pending purchases: " + description);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Call this when in-app payments are not needed anymore (i.e. from the onDestroy of your
+	 * activity). Operations in progress are completed before the billing service is released.
+	 */
+	public static void shutdown() {
+		IabHelper.sDispose();
+	}
+
+	/**
+	 * Configures the cache of product details, used to avoid querying Google Play each time the
+	 * products are listed or purchased.
+	 * @param ttlMillis Time after which the details of a product are queried again. Pass 0 to
+	 *                  disable the cache.
+	 * @param maxEntries Maximum number of products kept in memory.
+	 */
+	public static void configureProductCache(long ttlMillis, int maxEntries) {
+		IabHelper.sGetSkuDetailsCache().configure(ttlMillis, maxEntries);
+	}
+
+	/**
+	 * Forgets the product details cached so far. Call it if you know that prices have changed.
+	 */
+	public static void invalidateProductCache() {
+		IabHelper.sGetSkuDetailsCache().invalidate();
+	}
+
+	/**
+	 * @return Statistics about the product details cache, as a JSON object containing the number
+	 * of `hits`, `misses` and the current `size`.
+	 */
+	public static String getProductCacheStats() {
+		SkuDetailsCache cache = IabHelper.sGetSkuDetailsCache();
+		JsonWriter out = JsonWriter.obtain();
+		try {
+			return out.beginObject()
+				.name("hits").value(cache.getHitCount())
+				.name("misses").value(cache.getMissCount())
+				.name("size").value(cache.size())
+				.endObject().toStringAndRelease();
+		} finally {
+			out.release();
+		}
+	}
+
+	/**
+	 * @return Latency and outcome of each phase of the purchase pipeline since startup (or the
+	 * last call to resetMetrics), as a JSON object with one member per phase that occurred, e.g.
+	 * `{"skuDetails": {"count": 12, "errors": {"6": 1}, "mean": 85.2, "p50": 71.5, "p95": 190.5,
+	 * "p99": 253.5, "max": 262.1}}`. Latencies are in milliseconds. Errors are counted by billing
+	 * response code for the calls to the billing service (bind, billingSupported, skuDetails,
+	 * purchasesPage, buyIntent, purchaseFlow, consume), and by ErrorCode for the operations of the
+	 * Store (listProducts, launchPurchase, terminatePurchase, terminatePurchases).
+	 */
+	public static String getMetrics() {
+		return IabHelper.sGetMetrics().toJson();
+	}
+
+	/**
+	 * Clears the metrics, e.g. once they have been sent, so that the next snapshot only covers
+	 * what happened since.
+	 */
+	public static void resetMetrics() {
+		IabHelper.sGetMetrics().reset();
+	}
+
 	/**
 	 * Handles an activity result that's part of the purchase flow in in-app billing.
 	 * You must call this method from your Activity's {@link android.app.Activity@onActivityResult}
@@ -61,13 +227,31 @@ public class Store {
 	 * @param paramsJson Currently unused.
 	 */
 	public static void listProducts(String paramsJson) {
+		listProducts(null, paramsJson);
+	}
+
+	/**
+	 * Lists the products on sale in the Google Play Store. Several listings can run concurrently.
+	 * If the product snapshot is enabled and the details are not in memory, the products saved on
+	 * disk are sent right away, flagged with `"stale": true`. Fresh details are fetched meanwhile
+	 * and sent to GetInformationAboutProducts_Updated (with the same request ID) if they differ.
+	 * @param requestId Identifier chosen by the caller, echoed as `requestId` in the result so that
+	 *                  it can be matched with the request. May be null.
+	 * @param paramsJson List of products as configured on CotC.
+	 */
+	public static void listProducts(final String requestId, String paramsJson) {
+		final long started = BillingMetrics.start();
+		if (!beginRequest(CB_LISTPRODUCTS, requestId, started)) { return; }
 		try {
-			// Convert the JSON array to a standard ArrayList SKU list
-			final JSONArray products = new JSONArray(paramsJson);
-			final ArrayList<String> skus = new ArrayList<String>();
-			for (int i = 0; i < products.length(); i++) {
-				JSONObject product = products.getJSONObject(i);
-				skus.add(product.getString("googlePlayId"));
+			// Index the products by SKU (reused if the same products have already been listed)
+			final ProductCatalog catalog = ProductCatalog.fromJson(paramsJson);
+			final ArrayList<String> skus = catalog.getSkus();
+
+			// Without fresh details at hand, answer at once with the ones saved on disk if any
+			final List<SkuDetails> stale = IabHelper.sGetSkuDetailsCache().containsAll(skus) ? null : IabHelper.sGetSkuDetailsSnapshot().get(skus);
+			if (stale != null) {
+				ProductList staleList = new ProductList(stale, null);
+				callbackToUnity(CB_LISTPRODUCTS, requestId, started, UnityMessages.writeProductList(staleList, catalog).name("stale").value(true));
 			}
 
 			// Everything went well; connect to the IAB service
@@ -75,21 +259,24 @@ public class Store {
 				@Override
 				public void onDone(IabHelper handler, IabResult result) {
 					if (handler == null) {
-						callbackToUnity(CB_LISTPRODUCTS, ErrorCode.ErrorWithExternalStore, result.toString());
+						failListing(requestId, started, stale, ErrorCode.ErrorWithExternalStore, result.toString());
 						return;
 					}
 					// Now we can query the products
-					handler.getProductDetails(skus, new IabHelper.CloudResultListener() {
+					handler.getProductDetails(skus, new IabHelper.CloudResultListener<ProductList>() {
 						@Override
-						public void onDone(JSONObject result) {
-							// We now need to enrich the skus with the product ID
-							enrichProductDetails(result, products);
-							callbackToUnity(CB_LISTPRODUCTS, result);
+						public void onDone(ProductList result) {
+							if (stale == null) {
+								callbackToUnity(CB_LISTPRODUCTS, requestId, started, UnityMessages.writeProductList(result, catalog));
+							} else if (!sameProducts(stale, result.getProducts())) {
+								Log.v(TAG, "Products changed since the snapshot, updating.");
+								sendToUnity(CB_PRODUCTSUPDATED, requestId, UnityMessages.writeProductList(result, catalog));
+							}
 						}
 
 						@Override
 						public void onError(ErrorCode code, String description) {
-							callbackToUnity(CB_LISTPRODUCTS, code, description);
+							failListing(requestId, started, stale, code, description);
 						}
 					});
 				}
@@ -97,7 +284,7 @@ public class Store {
 
 		} catch (JSONException e) {
 			Log.e(TAG, "Decoding param JSON", e);
-			callbackToUnity(CB_LISTPRODUCTS, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
+			callbackToUnity(CB_LISTPRODUCTS, requestId, started, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
 		}
 	}
 
@@ -107,6 +294,50 @@ public class Store {
 	 *                   product to purchase on Google Play.
 	 */
 	public static void launchPurchase(String paramsJson) {
+		launchPurchase(null, paramsJson);
+	}
+
+	// The listing has been answered already if there was a snapshot, it then just stays stale
+	private static void failListing(String requestId, long started, List<SkuDetails> stale, ErrorCode code, String description) {
+		if (stale == null) {
+			callbackToUnity(CB_LISTPRODUCTS, requestId, started, code, description);
+		} else {
+			Log.w(TAG, "Failed to refresh products listed from the snapshot: " + description);
+		}
+	}
+
+	/**
+	 * @return Whether both lists contain the same products, in any order, with the same details as
+	 * far as Unity is concerned (see UnityMessages.writeProduct). Changes to the other fields, such
+	 * as the description, are not worth an update.
+	 */
+	private static boolean sameProducts(List<SkuDetails> a, List<SkuDetails> b) {
+		if (a.size() != b.size()) { return false; }
+		HashMap<String, SkuDetails> bySku = new HashMap<String, SkuDetails>();
+		for (SkuDetails d : a) {
+			bySku.put(d.getSku(), d);
+		}
+		for (SkuDetails d : b) {
+			SkuDetails other = bySku.get(d.getSku());
+			if (other == null || other.getPriceAmount() != d.getPriceAmount()) { return false; }
+			String currency = other.getPriceCurrency();
+			if (currency == null ? d.getPriceCurrency() != null : !currency.equals(d.getPriceCurrency())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Launch the purchase of a product. Only one purchase can be in progress at a time.
+	 * @param requestId Identifier chosen by the caller, echoed as `requestId` in the result so that
+	 *                  it can be matched with the request. May be null.
+	 * @param paramsJson Should contain productId = the product ID to purchase, internalProductId =
+	 *                   product to purchase on Google Play.
+	 */
+	public static void launchPurchase(final String requestId, String paramsJson) {
+		final long started = BillingMetrics.start();
+		if (!beginRequest(CB_LAUNCHPURCHASE, requestId, started)) { return; }
 		try {
 			JSONObject params = new JSONObject(paramsJson);
 			final String cotcProductId = params.getString("productId");
@@ -117,30 +348,21 @@ public class Store {
 				@Override
 				public void onDone(final IabHelper handler, IabResult result) {
 					if (handler == null) {
-						callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.ErrorWithExternalStore, result.toString());
+						callbackToUnity(CB_LAUNCHPURCHASE, requestId, started, ErrorCode.ErrorWithExternalStore, result.toString());
 						return;
 					}
 
-					// Fetch additional info about the product, we'll include this into the receipt
-					ArrayList<String> skus = new ArrayList<String>();
-					skus.add(gpSku);
-					handler.getProductDetails(skus, new IabHelper.CloudResultListener() {
-						@Override
-						public void onDone(JSONObject productDetails) {
-							launchPurchase(productDetails, handler, gpSku, cotcProductId);
-						}
-
-						@Override
-						public void onError(ErrorCode code, String description) {
-							callbackToUnity(CB_LAUNCHPURCHASE, code, description);
-						}
-					});
+					// Fetch additional info about the product, we'll include this into the receipt. Only
+					// needed once the purchase is made, so it does not delay the purchase sheet.
+					PurchaseReceipt receipt = new PurchaseReceipt(handler, requestId, started, gpSku, cotcProductId);
+					handler.getProductDetails(receipt.skus(), receipt);
+					launchPurchase(receipt, handler, gpSku);
 				}
 			});
 
 		} catch (JSONException e) {
 			Log.e(TAG, "Decoding param JSON", e);
-			callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
+			callbackToUnity(CB_LAUNCHPURCHASE, requestId, started, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
 		}
 	}
 
@@ -151,6 +373,19 @@ public class Store {
 	 *                   SKU of the purchased product.
 	 */
 	public static void terminatePurchase(String paramsJson) {
+		terminatePurchase(null, paramsJson);
+	}
+
+	/**
+	 * Terminates (consumes) a purchase. Several purchases can be terminated concurrently.
+	 * @param requestId Identifier chosen by the caller, echoed as `requestId` in the result so that
+	 *                  it can be matched with the request. May be null.
+	 * @param paramsJson should contain `token` (the consumption token) and `internalProductId` the
+	 *                   SKU of the purchased product.
+	 */
+	public static void terminatePurchase(final String requestId, String paramsJson) {
+		final long started = BillingMetrics.start();
+		if (!beginRequest(CB_TERMINATEPURCHASE, requestId, started)) { return; }
 		try {
 			JSONObject params = new JSONObject(paramsJson);
 			final String consumptionToken = params.getString("token");
@@ -160,70 +395,142 @@ public class Store {
 				@Override
 				public void onDone(IabHelper handler, IabResult result) {
 					if (handler == null) {
-						callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.ErrorWithExternalStore, result.toString());
+						callbackToUnity(CB_TERMINATEPURCHASE, requestId, started, ErrorCode.ErrorWithExternalStore, result.toString());
 						return;
 					}
 
 					// Purchase verified -> consume it
-					handler.terminatePurchase(gpSku, consumptionToken, new IabHelper.CloudResultListener() {
+					handler.terminatePurchase(gpSku, consumptionToken, new IabHelper.CloudResultListener<Void>() {
 						@Override
-						public void onDone(JSONObject result) {
-							callbackToUnity(CB_TERMINATEPURCHASE, "{}");
+						public void onDone(Void result) {
+							callbackToUnity(CB_TERMINATEPURCHASE, requestId, started, JsonWriter.obtain().beginObject());
 						}
 
 						@Override
 						public void onError(ErrorCode code, String description) {
-							callbackToUnity(CB_TERMINATEPURCHASE, code, description);
+							callbackToUnity(CB_TERMINATEPURCHASE, requestId, started, code, description);
 						}
 					});
 				}
 			});
 		} catch (JSONException e) {
 			Log.e(TAG, "Decoding param JSON", e);
-			callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
+			callbackToUnity(CB_TERMINATEPURCHASE, requestId, started, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
 		}
 	}
 
-	private static void callbackToUnity(String methodName, String arg) {
-		UnityPlayer.UnitySendMessage(gameObjectName, methodName, arg);
-	}
+	/**
+	 * Terminates (consumes) several purchases at once, typically the ones left pending after an
+	 * outage, with a single message sent back to Unity. Purchases are consumed in parallel, within
+	 * the limits of the billing executor.
+	 * @param requestId Identifier chosen by the caller, echoed as `requestId` in the result so that
+	 *                  it can be matched with the request. May be null.
+	 * @param paramsJson Array of objects containing `token` (the consumption token) and
+	 *                   `internalProductId` (the SKU of the purchased product).
+	 * Calls back TerminatePurchases_Done with `results`, containing the `token` and
+	 * `internalProductId` of each purchase in the order of the request, along with an `error` and
+	 * its `description` if it could not be consumed (including a token repeated in the request).
+	 */
+	public static void terminatePurchases(final String requestId, String paramsJson) {
+		final long started = BillingMetrics.start();
+		if (!beginRequest(CB_TERMINATEPURCHASES, requestId, started)) { return; }
+		try {
+			JSONArray params = new JSONArray(paramsJson);
+			final ArrayList<String> tokens = new ArrayList<String>(), skus = new ArrayList<String>();
+			for (int i = 0; i < params.length(); i++) {
+				JSONObject purchase = params.getJSONObject(i);
+				tokens.add(purchase.getString("token"));
+				skus.add(purchase.getString("internalProductId"));
+			}
+
+			IabHelper.getHandler(UnityPlayer.currentActivity, new IabHelper.SetupListener() {
+				@Override
+				public void onDone(IabHelper handler, IabResult result) {
+					if (handler == null) {
+						callbackToUnity(CB_TERMINATEPURCHASES, requestId, started, ErrorCode.ErrorWithExternalStore, result.toString());
+						return;
+					}
 
-	private static void callbackToUnity(String methodName, JSONObject arg) {
-		callbackToUnity(methodName, arg.toString());
+					handler.terminatePurchases(tokens, skus, new IabHelper.CloudResultListener<List<ConsumeResult>>() {
+						@Override
+						public void onDone(List<ConsumeResult> results) {
+							callbackToUnity(CB_TERMINATEPURCHASES, requestId, started, UnityMessages.writeConsumeResults(results));
+						}
+
+						@Override
+						public void onError(ErrorCode code, String description) {
+							callbackToUnity(CB_TERMINATEPURCHASES, requestId, started, code, description);
+						}
+					});
+				}
+			});
+		} catch (JSONException e) {
+			Log.e(TAG, "Decoding param JSON", e);
+			callbackToUnity(CB_TERMINATEPURCHASES, requestId, started, ErrorCode.InternalError, "Decoding param JSON: " + e.getMessage());
+		}
 	}
 
-	private static void callbackToUnity(String methodName, ErrorCode code, String description) {
-		try {
-			JSONObject result = new JSONObject();
-			result.put("error", code.code);
-			result.put("description", description);
-			callbackToUnity(methodName, result.toString());
-		} catch (JSONException ex) {
-			Log.e(TAG, "Exception calling back to Unity", ex);
+	/**
+	 * Registers a request as in progress.
+	 * @param methodName Callback that will complete the request.
+	 * @param requestId ID of the request, as passed by the caller. May be null, in which case the
+	 *                  request is not tracked.
+	 * @param started Value of BillingMetrics.start() when the request was received.
+	 * @return false if a request with the same ID is already running. The caller has been notified
+	 * and the request must not be processed. The refusal carries the ID as `duplicateOf` rather than
+	 * `requestId`, so that it is not taken for the outcome of the request in progress.
+	 */
+	private static boolean beginRequest(String methodName, String requestId, long started) {
+		if (requestId == null) { return true; }
+		String running = inFlightRequests.putIfAbsent(requestId, methodName);
+		if (running != null) {
+			Log.w(TAG, "Request " + requestId + " already in progress for " + running);
+			// Not through callbackToUnity, the request in progress must stay registered
+			IabHelper.sGetMetrics().record(phaseOf(methodName), started, ErrorCode.AlreadyInProgress.code);
+			sendToUnity(methodName, null, UnityMessages.error(ErrorCode.AlreadyInProgress, "Request " + requestId + " is already in progress")
+				.name("duplicateOf").value(requestId));
+			return false;
 		}
+		return true;
 	}
 
 	/**
-	 * When coming back from google, the product list has only the google SKUs. We want to put back
-	 * the names of the products as they appear on the BO.
-	 * @param result Result got from getProductDetails.
-	 * @param products List of products returned by CotC.
+	 * Completes a request by sending its result to Unity.
+	 * @param started Value of BillingMetrics.start() when the request was received.
+	 * @param result Writer in which the members of the result object have been written. The object
+	 *               is closed here, after adding the request ID.
 	 */
-	private static void enrichProductDetails(JSONObject result, JSONArray products) {
+	private static void callbackToUnity(String methodName, String requestId, long started, JsonWriter result) {
+		completeRequest(methodName, requestId, started, ErrorCode.Ok, result);
+	}
+
+	private static void callbackToUnity(String methodName, String requestId, long started, ErrorCode code, String description) {
+		completeRequest(methodName, requestId, started, code, UnityMessages.error(code, description));
+	}
+
+	private static void completeRequest(String methodName, String requestId, long started, ErrorCode outcome, JsonWriter result) {
+		if (requestId != null) {
+			inFlightRequests.remove(requestId);
+		}
+		IabHelper.sGetMetrics().record(phaseOf(methodName), started, outcome.code);
+		sendToUnity(methodName, requestId, result);
+	}
+
+	private static BillingMetrics.Phase phaseOf(String methodName) {
+		if (methodName.equals(CB_LISTPRODUCTS)) { return BillingMetrics.Phase.ListProducts; }
+		if (methodName.equals(CB_LAUNCHPURCHASE)) { return BillingMetrics.Phase.LaunchPurchase; }
+		if (methodName.equals(CB_TERMINATEPURCHASES)) { return BillingMetrics.Phase.TerminatePurchases; }
+		return BillingMetrics.Phase.TerminatePurchase;
+	}
+
+	private static void sendToUnity(String methodName, String requestId, JsonWriter result) {
 		try {
-			JSONArray values = result.getJSONArray("products");
-			for (int i = 0; i < values.length(); i++) {
-				JSONObject enrichedObject = values.getJSONObject(i);
-				String googleSku = enrichedObject.getString("internalProductId");
-				for (int j = 0; j < products.length(); j++) {
-					JSONObject product = products.getJSONObject(j);
-					if (googleSku.equals(product.getString("googlePlayId"))) {
-						enrichedObject.put("productId", product.getString("productId"));
-					}
-				}
+			if (requestId != null) {
+				result.name("requestId").value(requestId);
 			}
-		} catch (JSONException e) {
-			Log.e(TAG, "Enriching products JSON", e);
+			UnityPlayer.UnitySendMessage(gameObjectName, methodName, result.endObject().toStringAndRelease());
+		} finally {
+			result.release();
 		}
 	}
 
@@ -254,66 +561,161 @@ public class Store {
 	}*/
 
 	// 2nd step of launchPurchase (params coming from C# are decoded in launchPurchase).
-	private static void launchPurchase(JSONObject productDetails, final IabHelper handler, final String gpSku, final String cotcProductId) {
-		try {
-			// This object will be used to report additional information with the receipt
-			final JSONObject boughtProductInfo = productDetails.getJSONArray("products").getJSONObject(0);
+	private static void launchPurchase(final PurchaseReceipt receipt, final IabHelper handler, String gpSku) {
+		// Fetch the buy intent first, so that the activity can show the purchase sheet right away
+		handler.prepareBuyIntent(gpSku, null, new IabHelper.CloudResultListener<BuyIntent>() {
+			@Override
+			public void onDone(BuyIntent buyIntent) {
+				if (buyIntent.getOwnedPurchase() != null) {
+					// No need for the purchase sheet, the item is to be terminated
+					receipt.purchaseListener.onDone(buyIntent.getOwnedPurchase());
+				} else {
+					startPurchaseActivity(handler, buyIntent, receipt.purchaseListener);
+				}
+			}
 
-			// Start the activity only for purchase
-			PurchaseActivity.startActivity(UnityPlayer.currentActivity, new PurchaseActivity.ActivityListener() {
-				private boolean didGetActivityResult = false, beenClosedAlready = false;
+			@Override
+			public void onError(ErrorCode code, String description) {
+				receipt.purchaseListener.onError(code, description);
+			}
+		});
+	}
 
-				@Override
-				public void wasCreated(final PurchaseActivity purchaseActivity) {
-					// Now we can launch the purchase
-					handler.launchPurchase(purchaseActivity, STORE_REQUEST_CODE, gpSku, null, new IabHelper.CloudResultListener() {
-						@Override
-						public void onDone(JSONObject result) {
-							if (!beenClosedAlready) {
-								beenClosedAlready = true;
-								purchaseActivity.stopActivity();
-							}
+	// 3rd step of launchPurchase: shows the purchase sheet from our activity, which receives the result.
+	private static void startPurchaseActivity(final IabHelper handler, final BuyIntent buyIntent, final IabHelper.CloudResultListener<Purchase> purchaseListener) {
+		final long activityStarted = BillingMetrics.start();
+		PurchaseActivity.startActivity(UnityPlayer.currentActivity, new PurchaseActivity.ActivityListener() {
+			private boolean completed = false;
 
-							// Put additional information with the receipt for the server
-							try {
-								result.put("productId", cotcProductId);
-								result.put("price", boughtProductInfo.getDouble("price"));
-								result.put("currency", boughtProductInfo.getString("currency"));
-
-								// Verify the purchase data (use our server)
-								callbackToUnity(CB_LAUNCHPURCHASE, result);
-							} catch (JSONException e) {
-								Log.e(TAG, "Adding info to receipt JSON", e);
-								callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.InternalError, "Adding info to receipt JSON: " + e.getMessage());
-							}
-						}
+			@Override
+			public void wasCreated(final PurchaseActivity purchaseActivity) {
+				IabHelper.sGetMetrics().record(BillingMetrics.Phase.PurchaseActivityStart, activityStarted, 0);
+				handler.startBuyIntent(purchaseActivity, STORE_REQUEST_CODE, buyIntent, new IabHelper.CloudResultListener<Purchase>() {
+					@Override
+					public void onDone(Purchase purchase) {
+						completed = true;
+						purchaseActivity.stopActivity();
+						purchaseListener.onDone(purchase);
+					}
 
-						@Override
-						public void onError(ErrorCode code, String description) {
-							callbackToUnity(CB_LAUNCHPURCHASE, code, description);
-						}
-					});
-				}
+					@Override
+					public void onError(ErrorCode code, String description) {
+						completed = true;
+						purchaseActivity.stopActivity();
+						purchaseListener.onError(code, description);
+					}
+				});
+			}
 
-				@Override
-				public void gotActivityResult(int requestCode, int resultCode, Intent data) {
-					didGetActivityResult = true;
-					// Process result from purchase
-					IabHelper.sHandleActivityResult(requestCode, resultCode, data);
+			@Override
+			public void gotActivityResult(int requestCode, int resultCode, Intent data) {
+				// Process result from purchase
+				IabHelper.sHandleActivityResult(requestCode, resultCode, data);
+			}
+
+			@Override
+			public void wasStopped() {
+				if (!completed) {
+					completed = true;
+					purchaseListener.onError(ErrorCode.Canceled, "Dialog closed");
 				}
+			}
+		});
+	}
 
-				@Override
-				public void wasStopped() {
-					if (!beenClosedAlready) {
-						if (!didGetActivityResult) {
-							callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.Canceled, "Dialog closed");
-						}
-					}
+	/**
+	 * Result of launchPurchase, assembled from the purchase and the details of the product (reported
+	 * with the receipt), which are fetched concurrently. Sent to Unity once both are known. All
+	 * callbacks happen on the UI thread.
+	 * The receipt is never sent without a price: if the details could not be fetched beforehand,
+	 * they are queried again once the purchase is made, then looked up in the snapshot. If they are
+	 * still missing, an error is reported and the purchase is left pending; it will be found again
+	 * by recoverPendingPurchases, or by the next purchase of the same product.
+	 */
+	private static class PurchaseReceipt implements IabHelper.CloudResultListener<ProductList> {
+		private final IabHelper mHandler;
+		private final String mRequestId, mSku, mCotcProductId;
+		private final long mStarted;
+		private boolean mDetailsReceived, mRetried, mCompleted;
+		private SkuDetails mDetails;
+		private Purchase mPurchase;
+
+		final IabHelper.CloudResultListener<Purchase> purchaseListener = new IabHelper.CloudResultListener<Purchase>() {
+			@Override
+			public void onDone(Purchase purchase) {
+				mPurchase = purchase;
+				sendIfComplete();
+			}
+
+			@Override
+			public void onError(ErrorCode code, String description) {
+				if (mCompleted) { return; }
+				mCompleted = true;
+				callbackToUnity(CB_LAUNCHPURCHASE, mRequestId, mStarted, code, description);
+			}
+		};
+
+		PurchaseReceipt(IabHelper handler, String requestId, long started, String sku, String cotcProductId) {
+			mHandler = handler;
+			mRequestId = requestId;
+			mStarted = started;
+			mSku = sku;
+			mCotcProductId = cotcProductId;
+		}
+
+		ArrayList<String> skus() {
+			ArrayList<String> skus = new ArrayList<String>();
+			skus.add(mSku);
+			return skus;
+		}
+
+		@Override
+		public void onDone(ProductList productDetails) {
+			mDetailsReceived = true;
+			if (productDetails.getProducts().isEmpty()) {
+				Log.w(TAG, "Product " + mSku + " not found on the store");
+			} else {
+				mDetails = productDetails.getProducts().get(0);
+			}
+			sendIfComplete();
+		}
+
+		@Override
+		public void onError(ErrorCode code, String description) {
+			// The purchase does not depend on it, it is queried again once the purchase is made
+			Log.w(TAG, "Failed to fetch details of " + mSku + ": " + description);
+			mDetailsReceived = true;
+			sendIfComplete();
+		}
+
+		private void sendIfComplete() {
+			if (mCompleted || !mDetailsReceived || mPurchase == null) { return; }
+			if (mDetails == null && !mRetried) {
+				mRetried = true;
+				mDetailsReceived = false;
+				mHandler.getProductDetails(skus(), this);
+				return;
+			}
+			if (mDetails == null) {
+				List<SkuDetails> snapshot = IabHelper.sGetSkuDetailsSnapshot().get(skus());
+				if (snapshot != null) {
+					Log.w(TAG, "Using details of " + mSku + " from the snapshot for the receipt");
+					mDetails = snapshot.get(0);
 				}
-			});
-		} catch (JSONException e) {
-			Log.e(TAG, "Decoding product JSON", e);
-			callbackToUnity(CB_LAUNCHPURCHASE, ErrorCode.InternalError, "Decoding product JSON: " + e.getMessage());
+			}
+			mCompleted = true;
+			if (mDetails == null) {
+				callbackToUnity(CB_LAUNCHPURCHASE, mRequestId, mStarted, ErrorCode.ErrorWithExternalStore,
+					"Purchase of " + mSku + " made but its price could not be fetched; it is left pending");
+				return;
+			}
+			// Put additional information with the receipt for the server
+			JsonWriter result = UnityMessages.writePurchase(JsonWriter.obtain().beginObject(), mPurchase)
+				.name("productId").value(mCotcProductId)
+				.name("price").value(mDetails.getPriceAmount())
+				.name("currency").value(mDetails.getPriceCurrency());
+			// Verify the purchase data (use our server)
+			callbackToUnity(CB_LAUNCHPURCHASE, mRequestId, mStarted, result);
 		}
 	}
 }
@@ -0,0 +1,145 @@
+package com.clanofthecloud.cotcinapppurchase;
+
+import com.clanofthecloud.cotcinapppurchase.iab.ConsumeResult;
+import com.clanofthecloud.cotcinapppurchase.iab.ErrorCode;
+import com.clanofthecloud.cotcinapppurchase.iab.JsonWriter;
+import com.clanofthecloud.cotcinapppurchase.iab.ProductList;
+import com.clanofthecloud.cotcinapppurchase.iab.Purchase;
+import com.clanofthecloud.cotcinapppurchase.iab.SkuDetails;
+
+import java.util.List;
+
+/**
+ * Builds the messages sent to Unity by the Store. Each method returns (or takes) a writer in which
+ * an object has been begun and not ended, so that the Store can add the request ID before closing
+ * it.
+ */
+final class UnityMessages {
+	private UnityMessages() {}
+
+	/**
+	 * @return A writer with the members of an error result written.
+	 */
+	static JsonWriter error(ErrorCode code, String description) {
+		return JsonWriter.obtain().beginObject()
+			.name("error").value(code.code)
+			.name("description").value(description);
+	}
+
+	/**
+	 * Writes the result of listProducts. When coming back from google, the product list has only
+	 * the google SKUs. We want to put back the names of the products as they appear on the BO.
+	 * A SKU sold as several CotC products is listed once for each of them.
+	 * @param result Result got from getProductDetails.
+	 * @param catalog Products as configured on CotC.
+	 * @return A writer with the members of the result object written.
+	 */
+	static JsonWriter writeProductList(ProductList result, ProductCatalog catalog) {
+		JsonWriter out = JsonWriter.obtain().beginObject();
+		try {
+			out.name("products").beginArray();
+			for (SkuDetails d : result.getProducts()) {
+				List<String> productIds = catalog.getProductIds(d.getSku());
+				if (productIds.isEmpty()) {
+					writeProduct(out, d, null);
+				}
+				for (String productId : productIds) {
+					writeProduct(out, d, productId);
+				}
+			}
+			out.endArray();
+			if (!result.getErrors().isEmpty()) {
+				out.name("errors").beginArray();
+				for (ProductList.QueryError e : result.getErrors()) {
+					out.beginObject();
+					out.name("error").value(e.getCode().code);
+					out.name("description").value(e.getDescription());
+					out.name("internalProductIds").beginArray();
+					for (String sku : e.getSkus()) {
+						out.value(sku);
+					}
+					out.endArray();
+					out.endObject();
+				}
+				out.endArray();
+			}
+			return out;
+		} catch (RuntimeException e) {
+			out.release();
+			throw e;
+		}
+	}
+
+	private static void writeProduct(JsonWriter out, SkuDetails d, String productId) {
+		out.beginObject();
+		// We could add much more info (see SkuDetails), but let's limit to that for now
+		out.name("internalProductId").value(d.getSku());
+		out.name("price").value(d.getPriceAmount());
+		out.name("currency").value(d.getPriceCurrency());
+		if (productId != null) {
+			out.name("productId").value(productId);
+		}
+		out.endObject();
+	}
+
+	/**
+	 * Writes the result of terminatePurchases: the outcome for each token, with an `error` code and
+	 * a `description` for the ones that could not be consumed.
+	 * @param results Results got from terminatePurchases.
+	 * @return A writer with the members of the result object written.
+	 */
+	static JsonWriter writeConsumeResults(List<ConsumeResult> results) {
+		JsonWriter out = JsonWriter.obtain().beginObject();
+		try {
+			out.name("results").beginArray();
+			for (ConsumeResult r : results) {
+				out.beginObject();
+				out.name("token").value(r.getToken());
+				out.name("internalProductId").value(r.getSku());
+				if (r.getCode() != ErrorCode.Ok) {
+					out.name("error").value(r.getCode().code);
+					out.name("description").value(r.getDescription());
+				}
+				out.endObject();
+			}
+			out.endArray();
+			return out;
+		} catch (RuntimeException e) {
+			out.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a list of purchases, as `purchases`.
+	 * @return A writer with the members of the result object written.
+	 */
+	static JsonWriter writePurchases(List<Purchase> purchases) {
+		JsonWriter out = JsonWriter.obtain().beginObject();
+		try {
+			out.name("purchases").beginArray();
+			for (Purchase purchase : purchases) {
+				writePurchase(out.beginObject(), purchase).endObject();
+			}
+			out.endArray();
+			return out;
+		} catch (RuntimeException e) {
+			out.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the members describing a purchase, as sent to Unity once a product has been bought.
+	 * @param out Writer in which an object has been begun.
+	 * @param purchase The purchase.
+	 * @return The writer.
+	 */
+	static JsonWriter writePurchase(JsonWriter out, Purchase purchase) {
+		return out.name("store").value("googleplay")
+			.name("internalProductId").value(purchase.getSku())
+			.name("receipt").value(purchase.getOriginalJson())
+			.name("signature").value(purchase.getSignature())
+			.name("token").value(purchase.getToken());
+	}
+}
@@ -14,6 +14,8 @@
 
 package com.clanofthecloud.cotcinapppurchase.iab;
 
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -503,7 +505,183 @@ public class Base64 {
             throws Base64DecoderException {
         int len34 = len * 3 / 4;
         byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
+        int outBuffPosn = decodeSlow(source, off, len, outBuff, 0, decodabet);
+        byte[] out = new byte[outBuffPosn];
+        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+        return out;
+    }
+
+    /**
+     * Decodes Base64 content into a caller-provided buffer, without allocating.
+     *
+     * @param source the Base64 encoded data
+     * @param destination buffer receiving the decoded data, with at least
+     *     {@link #maxDecodedLength}(source.length()) bytes available
+     * @param destOffset where to start writing in destination
+     * @return the number of bytes decoded
+     */
+    public static int decode(CharSequence source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decodeFast(source, 0, source.length(), destination, destOffset, DECODABET);
+    }
+
+    /**
+     * Decodes web safe Base64 content into a caller-provided buffer, without allocating.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+     *
+     * @see #decode(CharSequence, byte[], int)
+     */
+    public static int decodeWebSafe(CharSequence source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        return decodeFast(source, 0, source.length(), destination, destOffset, WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes the remaining Base64 content of a buffer into a caller-provided buffer. The
+     * position of the source buffer is moved to its limit.
+     *
+     * @param source the Base64 encoded data, between its position and limit
+     * @param destination buffer receiving the decoded data, with at least
+     *     {@link #maxDecodedLength}(source.remaining()) bytes available
+     * @param destOffset where to start writing in destination
+     * @return the number of bytes decoded
+     */
+    public static int decode(final ByteBuffer source, byte[] destination, int destOffset)
+            throws Base64DecoderException {
+        final int position = source.position(), len = source.remaining();
+        int decoded;
+        if (source.hasArray()) {
+            decoded = decodeFast(source.array(), source.arrayOffset() + position, len,
+                    destination, destOffset, DECODABET);
+        } else {
+            // Direct buffer: read it in place through a character view
+            decoded = decodeFast(new CharSequence() {
+                public int length() { return len; }
+                public char charAt(int index) { return (char) (source.get(position + index) & 0xff); }
+                public CharSequence subSequence(int start, int end) { throw new UnsupportedOperationException(); }
+            }, 0, len, destination, destOffset, DECODABET);
+        }
+        source.position(position + len);
+        return decoded;
+    }
+
+    /**
+     * @param encodedLength number of Base64 characters
+     * @return the size of the buffer needed to decode them
+     */
+    public static int maxDecodedLength(int encodedLength) {
+        return encodedLength / 4 * 3 + (encodedLength % 4 == 0 ? 0 : 2);
+    }
+
+    /**
+     * Decodes full groups of four characters directly through the decodabet, and falls back to
+     * the general (character by character) loop as soon as it meets anything else than a Base64
+     * digit: whitespace, padding or invalid characters. A final padded or unpadded group is
+     * handled here too, so regular input never goes through the general loop.
+     */
+    private static int decodeFast(byte[] source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64DecoderException {
+        checkCapacity(len, destination, destOffset);
+        int i = off, o = destOffset, end = off + len;
+        for (; i + 4 <= end; i += 4) {
+            int c0 = source[i] & 0xff, c1 = source[i + 1] & 0xff;
+            int c2 = source[i + 2] & 0xff, c3 = source[i + 3] & 0xff;
+            if ((c0 | c1 | c2 | c3) > 0x7f) { break; }
+            int d0 = decodabet[c0], d1 = decodabet[c1], d2 = decodabet[c2], d3 = decodabet[c3];
+            if ((d0 | d1 | d2 | d3) < 0) { break; }
+            int v = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+            destination[o] = (byte) (v >> 16);
+            destination[o + 1] = (byte) (v >> 8);
+            destination[o + 2] = (byte) v;
+            o += 3;
+        }
+        int rest = end - i;
+        if (rest == 0) { return o - destOffset; }
+        if (rest <= 4) {
+            int d0 = digit(source[i], decodabet), d1 = rest > 1 ? digit(source[i + 1], decodabet) : -9;
+            int d2 = rest > 2 ? digit(source[i + 2], decodabet) : EQUALS_SIGN_ENC;
+            int d3 = rest > 3 ? digit(source[i + 3], decodabet) : EQUALS_SIGN_ENC;
+            int tail = decodeTail(d0, d1, d2, d3, destination, o);
+            if (tail >= 0) { return o + tail - destOffset; }
+        }
+        return o - destOffset + decodeSlow(source, i, rest, destination, o, decodabet);
+    }
+
+    private static int decodeFast(CharSequence source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64DecoderException {
+        checkCapacity(len, destination, destOffset);
+        int i = off, o = destOffset, end = off + len;
+        for (; i + 4 <= end; i += 4) {
+            char c0 = source.charAt(i), c1 = source.charAt(i + 1);
+            char c2 = source.charAt(i + 2), c3 = source.charAt(i + 3);
+            if ((c0 | c1 | c2 | c3) > 0x7f) { break; }
+            int d0 = decodabet[c0], d1 = decodabet[c1], d2 = decodabet[c2], d3 = decodabet[c3];
+            if ((d0 | d1 | d2 | d3) < 0) { break; }
+            int v = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+            destination[o] = (byte) (v >> 16);
+            destination[o + 1] = (byte) (v >> 8);
+            destination[o + 2] = (byte) v;
+            o += 3;
+        }
+        int rest = end - i;
+        if (rest == 0) { return o - destOffset; }
+        if (rest <= 4) {
+            int d0 = digit(source.charAt(i), decodabet), d1 = rest > 1 ? digit(source.charAt(i + 1), decodabet) : -9;
+            int d2 = rest > 2 ? digit(source.charAt(i + 2), decodabet) : EQUALS_SIGN_ENC;
+            int d3 = rest > 3 ? digit(source.charAt(i + 3), decodabet) : EQUALS_SIGN_ENC;
+            int tail = decodeTail(d0, d1, d2, d3, destination, o);
+            if (tail >= 0) { return o + tail - destOffset; }
+        }
+        // Unusual input (whitespace, invalid characters): use the general loop on what remains
+        byte[] remaining = new byte[rest];
+        for (int k = 0; k < rest; k++) {
+            char c = source.charAt(i + k);
+            if (c > 0x7f) {
+                throw new Base64DecoderException("Bad Base64 input character at " + (i + k)
+                        + ": " + (int) c + "(decimal)");
+            }
+            remaining[k] = (byte) c;
+        }
+        return o - destOffset + decodeSlow(remaining, 0, rest, destination, o, decodabet);
+    }
+
+    private static int digit(int c, byte[] decodabet) {
+        c &= 0xffff;
+        return c > 0x7f ? -9 : decodabet[c];
+    }
+
+    /**
+     * Decodes a final group of the form "xx==", "xxx=", or the same without padding.
+     * @return the number of bytes written, or -1 if the group is not of that form.
+     */
+    private static int decodeTail(int d0, int d1, int d2, int d3, byte[] destination, int o) {
+        if (d0 < 0 || d1 < 0 || d3 != EQUALS_SIGN_ENC) { return -1; }
+        if (d2 == EQUALS_SIGN_ENC) {
+            destination[o] = (byte) (((d0 << 18) | (d1 << 12)) >> 16);
+            return 1;
+        }
+        if (d2 < 0) { return -1; }
+        int v = (d0 << 18) | (d1 << 12) | (d2 << 6);
+        destination[o] = (byte) (v >> 16);
+        destination[o + 1] = (byte) (v >> 8);
+        return 2;
+    }
+
+    private static void checkCapacity(int len, byte[] destination, int destOffset) {
+        if (destination.length - destOffset < maxDecodedLength(len)) {
+            throw new IllegalArgumentException("Destination too small to decode "
+                    + len + " characters");
+        }
+    }
+
+    /**
+     * Decodes Base64 content character by character, skipping whitespace.
+     * @return the number of bytes written to destination
+     */
+    private static int decodeSlow(byte[] source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64DecoderException {
+        byte[] outBuff = destination;
+        int outBuffPosn = destOffset;
 
         byte[] b4 = new byte[4];
         int b4Posn = 0;
@@ -562,9 +740,6 @@ public class Base64 {
             b4[b4Posn++] = EQUALS_SIGN;
             outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
         }
-
-        byte[] out = new byte[outBuffPosn];
-        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
-        return out;
+        return outBuffPosn - destOffset;
     }
 }
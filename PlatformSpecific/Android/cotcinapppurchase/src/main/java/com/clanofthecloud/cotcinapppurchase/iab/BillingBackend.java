@@ -0,0 +1,57 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * Provider of the in-app billing API v3. In production this is the Google Play billing service
+ * (see PlayBillingBackend); other implementations can stand in for it, for instance to exercise
+ * the plugin without a device.
+ * Methods of this interface are called from the UI thread.
+ */
+public interface BillingBackend {
+	/**
+	 * Blocking calls of the billing API, with the same contract as IInAppBillingService. Called
+	 * from the billing executor threads, possibly concurrently.
+	 */
+	interface Service {
+		int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException;
+		Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException;
+		Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException;
+		Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException;
+		int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException;
+	}
+
+	/**
+	 * Notified of the state of a connection made with bind, on the UI thread.
+	 */
+	interface Connection {
+		void onConnected(Service service);
+		/**
+		 * The service has been lost (e.g. its process was killed). The connection stays bound and
+		 * may be connected again later.
+		 */
+		void onDisconnected();
+	}
+
+	/**
+	 * @param context Application context.
+	 * @return whether the billing service exists at all on this device. If not, binding is not
+	 * attempted.
+	 */
+	boolean isAvailable(Context context);
+
+	/**
+	 * Starts connecting to the service.
+	 * @param context Application context.
+	 * @param connection Notified once connected, and of subsequent disconnections.
+	 * @return false if the connection could not be initiated; it may be attempted again later.
+	 */
+	boolean bind(Context context, Connection connection);
+
+	/**
+	 * Releases a connection made with bind. The connection is not notified anymore afterwards.
+	 */
+	void unbind(Context context, Connection connection);
+}
@@ -0,0 +1,309 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.content.Context;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Manages the connection to the billing service, as provided by a BillingBackend. The service is bound on demand, one attempt at
+ * a time, and checked for in-app billing v3 support. When the service disconnects, it is bound
+ * again with an exponential backoff; callers asking for it meanwhile are parked and notified once
+ * the connection is back.
+ * Unless stated otherwise, methods must be called from the UI thread.
+ */
+class BillingConnection {
+	interface ReadyListener {
+		/**
+		 * @param result Result of the connection; the service can be used if it is a success.
+		 */
+		void onReady(IabResult result);
+	}
+
+	private static final String TAG = "BillingConnection";
+	// Delay before the first reconnection attempt, doubled for each subsequent one
+	static final long RECONNECT_INITIAL_DELAY_MS = 1000;
+	static final long RECONNECT_MAX_DELAY_MS = 60 * 1000;
+	// Parked callers are failed after this many unsuccessful attempts in a row
+	static final int RECONNECT_MAX_ATTEMPTS = 8;
+
+	private final BillingExecutor mExecutor;
+	private final BillingMetrics mMetrics;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Random mRandom = new Random();
+	// Callers waiting for the connection in progress
+	private final List<ReadyListener> mPendingListeners = new ArrayList<ReadyListener>();
+	private BillingBackend mBackend = new PlayBillingBackend();
+	private volatile BillingBackend.Service mService;
+	private volatile boolean mReady;
+	private boolean mConnecting;
+	private BillingBackend.Connection mBackendConn;
+	private Context mContext;
+	// Set once we know that billing is not supported on this device
+	private IabResult mUnsupportedResult;
+	private int mReconnectAttempts;
+	private Runnable mPendingReconnect;
+	// Since when we have been waiting for the service
+	private long mBindStartedAt;
+
+	BillingConnection(BillingExecutor executor, BillingMetrics metrics) {
+		mExecutor = executor;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Replaces the provider of the billing service (Google Play by default).
+	 * @throws IllegalStateException if the current backend is in use; release the connection first.
+	 */
+	void setBackend(BillingBackend backend) {
+		if (mBackendConn != null || mConnecting) {
+			throw new IllegalStateException("Billing backend already in use");
+		}
+		mBackend = backend;
+		mUnsupportedResult = null;
+	}
+
+	/**
+	 * Can be called from any thread.
+	 * @return The billing service.
+	 * @throws RemoteException (DeadObjectException) if the service is not connected.
+	 */
+	BillingBackend.Service getService() throws RemoteException {
+		BillingBackend.Service service = mService;
+		if (service == null) {
+			throw new DeadObjectException();
+		}
+		return service;
+	}
+
+	/**
+	 * Can be called from any thread.
+	 * @return whether the service is connected and supports in-app billing.
+	 */
+	boolean isReady() {
+		return mReady;
+	}
+
+	/**
+	 * Connects to the billing service if not already done.
+	 * @param context Context used to bind the service.
+	 * @param listener Notified when the service is ready or could not be connected. Called
+	 *                 synchronously if the state is already known.
+	 */
+	void whenReady(Context context, ReadyListener listener) {
+		if (mReady) {
+			listener.onReady(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Already loaded."));
+			return;
+		}
+		// Billing is known not to be supported, no need to ask again
+		if (mUnsupportedResult != null) {
+			listener.onReady(mUnsupportedResult);
+			return;
+		}
+		mPendingListeners.add(listener);
+		if (mConnecting) {
+			Log.v(TAG, "Billing service connection in progress, waiting for it.");
+			return;
+		}
+		mContext = context.getApplicationContext();
+		connect();
+	}
+
+	/**
+	 * Stops using the service. Tasks already scheduled on the executor are allowed to complete
+	 * before the service is unbound.
+	 */
+	void release() {
+		cancelReconnect();
+		mReady = false;
+		mConnecting = false;
+		mReconnectAttempts = 0;
+		mBindStartedAt = 0;
+		completePending(new IabResult(IabHelper.IABHELPER_UNKNOWN_ERROR, "Billing has been disposed."));
+		final BillingBackend.Connection backendConn = mBackendConn;
+		final BillingBackend backend = mBackend;
+		final Context context = mContext;
+		mBackendConn = null;
+		if (backendConn == null) { return; }
+		mExecutor.drain(new Runnable() {
+			public void run() {
+				Log.v(TAG, "Billing operations drained, unbinding service.");
+				// Backends are only used from the UI thread
+				mHandler.post(new Runnable() {
+					public void run() {
+						backend.unbind(context, backendConn);
+					}
+				});
+			}
+		});
+	}
+
+	private void connect() {
+		mConnecting = true;
+		Log.v(TAG, "Binding billing service.");
+		if (mBindStartedAt == 0) {
+			mBindStartedAt = BillingMetrics.start();
+		}
+		if (!mBackend.isAvailable(mContext)) {
+			// no service available to handle that Intent
+			mMetrics.record(BillingMetrics.Phase.Bind, mBindStartedAt, IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+			mBindStartedAt = 0;
+			mConnecting = false;
+			mUnsupportedResult = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+				"Billing service unavailable on device.");
+			completePending(mUnsupportedResult);
+			return;
+		}
+
+		// Callbacks of a connection released or replaced in the meantime are ignored
+		mBackendConn = new BillingBackend.Connection() {
+			@Override
+			public void onDisconnected() {
+				if (mBackendConn != this) return;
+				Log.w(TAG, "Billing service disconnected.");
+				mBindStartedAt = BillingMetrics.start();
+				mService = null;
+				mReady = false;
+				scheduleReconnect();
+			}
+
+			@Override
+			public void onConnected(BillingBackend.Service service) {
+				if (mBackendConn != this) return;
+				Log.v(TAG, "Billing service connected.");
+				// The system may bring the service back by itself before our own attempt
+				cancelReconnect();
+				mMetrics.record(BillingMetrics.Phase.Bind, mBindStartedAt, IabHelper.BILLING_RESPONSE_RESULT_OK);
+				mBindStartedAt = 0;
+				mConnecting = true;
+				mService = service;
+				checkBillingSupported(mContext.getPackageName());
+			}
+		};
+		if (!mBackend.bind(mContext, mBackendConn)) {
+			// Failed attempts are recorded, the wait goes on until connected or given up
+			mMetrics.record(BillingMetrics.Phase.Bind, mBindStartedAt, IabHelper.IABHELPER_REMOTE_EXCEPTION);
+			mBackendConn = null;
+			Log.w(TAG, "Could not bind billing service.");
+			scheduleReconnect();
+		}
+	}
+
+	/**
+	 * Checks for in-app billing v3 support on the billing executor, then completes the connection.
+	 * The outcome is dropped if the connection has been released or replaced in the meantime.
+	 */
+	private void checkBillingSupported(final String packageName) {
+		final BillingBackend.Connection backendConn = mBackendConn;
+		boolean accepted = mExecutor.execute(new Runnable() {
+			public void run() {
+				final IabResult result;
+				long started = BillingMetrics.start();
+				try {
+					Log.v(TAG, "Checking for in-app billing 3 support.");
+					int response = getService().isBillingSupported(3, packageName, IabHelper.ITEM_TYPE_INAPP);
+					mMetrics.record(BillingMetrics.Phase.BillingSupported, started, response);
+					if (response != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+						result = new IabResult(response, "Error checking for billing v3 support.");
+					} else {
+						Log.v(TAG, "In-app billing version 3 supported for " + packageName);
+						result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful.");
+					}
+				}
+				catch (RemoteException e) {
+					Log.w(TAG, "RemoteException while setting up in-app billing.", e);
+					mMetrics.record(BillingMetrics.Phase.BillingSupported, started, IabHelper.IABHELPER_REMOTE_EXCEPTION);
+					mHandler.post(new Runnable() {
+						public void run() {
+							if (mBackendConn != backendConn) return;
+							scheduleReconnect();
+						}
+					});
+					return;
+				}
+				mHandler.post(new Runnable() {
+					public void run() {
+						if (mBackendConn != backendConn) return;
+						connected(result);
+					}
+				});
+			}
+		});
+		if (!accepted) {
+			scheduleReconnect();
+		}
+	}
+
+	private void connected(IabResult result) {
+		if (!mConnecting) { return; }
+		mConnecting = false;
+		mReconnectAttempts = 0;
+		if (result.isSuccess()) {
+			mReady = true;
+		} else {
+			mUnsupportedResult = result;
+		}
+		completePending(result);
+	}
+
+	/**
+	 * Binds the service again after a delay growing exponentially with the number of attempts,
+	 * with some jitter. Callers keep being parked until then.
+	 */
+	private void scheduleReconnect() {
+		cancelReconnect();
+		if (mReconnectAttempts >= RECONNECT_MAX_ATTEMPTS) {
+			Log.e(TAG, "Giving up reconnecting to the billing service after " + mReconnectAttempts + " attempts.");
+			mBindStartedAt = 0;
+			mConnecting = false;
+			mReconnectAttempts = 0;
+			// Unbound now, the next whenReady binds again from scratch
+			BillingBackend.Connection previous = mBackendConn;
+			mBackendConn = null;
+			mService = null;
+			if (previous != null) {
+				mBackend.unbind(mContext, previous);
+			}
+			completePending(new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION, "Could not connect to the billing service."));
+			return;
+		}
+		long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_INITIAL_DELAY_MS << mReconnectAttempts);
+		delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+		mReconnectAttempts += 1;
+		mConnecting = true;
+		Log.v(TAG, "Reconnecting to the billing service in " + delay + " ms (attempt " + mReconnectAttempts + ").");
+		mPendingReconnect = new Runnable() {
+			public void run() {
+				mPendingReconnect = null;
+				BillingBackend.Connection previous = mBackendConn;
+				mBackendConn = null;
+				if (previous != null) {
+					mBackend.unbind(mContext, previous);
+				}
+				connect();
+			}
+		};
+		mHandler.postDelayed(mPendingReconnect, delay);
+	}
+
+	private void cancelReconnect() {
+		if (mPendingReconnect != null) {
+			mHandler.removeCallbacks(mPendingReconnect);
+			mPendingReconnect = null;
+		}
+	}
+
+	private void completePending(IabResult result) {
+		List<ReadyListener> listeners = new ArrayList<ReadyListener>(mPendingListeners);
+		mPendingListeners.clear();
+		for (ReadyListener l : listeners) {
+			l.onReady(result);
+		}
+	}
+}
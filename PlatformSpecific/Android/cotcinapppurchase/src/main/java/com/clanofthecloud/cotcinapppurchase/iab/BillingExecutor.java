@@ -0,0 +1,108 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking calls made to the billing service. Uses a fixed number of named worker
+ * threads and a bounded queue, so that a burst of operations can not pile up threads against the
+ * Binder. Owned by the IabHelper.
+ */
+class BillingExecutor {
+	private static final String TAG = "BillingExecutor";
+	// Number of worker threads talking to the billing service at the same time
+	static final int WORKER_COUNT = 2;
+	// Number of operations allowed to wait for a worker before we start rejecting them
+	static final int QUEUE_CAPACITY = 32;
+	// Idle workers are released after this delay
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
+	private final AtomicInteger mThreadCount = new AtomicInteger();
+	private DrainablePool mPool;
+
+	/**
+	 * Schedules a task on one of the billing workers.
+	 * @param task Task to run. Must not block indefinitely.
+	 * @return false if the task could not be accepted because too many operations are pending.
+	 */
+	synchronized boolean execute(Runnable task) {
+		if (mPool == null) {
+			mPool = createPool();
+		}
+		try {
+			mPool.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Billing queue full, rejecting operation (" + mPool.getQueue().size() + " pending).");
+			return false;
+		}
+	}
+
+	/**
+	 * Stops accepting tasks on the current pool and lets the ones already scheduled complete. A
+	 * new pool is created if another task is executed afterwards.
+	 * @param onDrained Called once every pending task has run (on the last worker thread, or
+	 *                  right away if the pool was idle). May be null.
+	 */
+	synchronized void drain(final Runnable onDrained) {
+		if (mPool == null) {
+			if (onDrained != null) onDrained.run();
+			return;
+		}
+		// The callback is attached to the pool being drained, not to the next one
+		final DrainablePool pool = mPool;
+		mPool = null;
+		if (onDrained != null) {
+			pool.setOnTerminated(onDrained);
+		}
+		pool.shutdown();
+	}
+
+	private DrainablePool createPool() {
+		DrainablePool pool = new DrainablePool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CotcBilling-" + mThreadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Pool notifying a callback when it has been shut down and all its tasks have run.
+	 */
+	private static class DrainablePool extends ThreadPoolExecutor {
+		private volatile Runnable mOnTerminated;
+
+		DrainablePool(ThreadFactory threadFactory) {
+			super(WORKER_COUNT, WORKER_COUNT, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), threadFactory);
+		}
+
+		void setOnTerminated(Runnable onTerminated) {
+			mOnTerminated = onTerminated;
+		}
+
+		@Override
+		protected void terminated() {
+			super.terminated();
+			Runnable callback = mOnTerminated;
+			if (callback != null) {
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Exception after draining billing queue", e);
+				}
+			}
+		}
+	}
+}
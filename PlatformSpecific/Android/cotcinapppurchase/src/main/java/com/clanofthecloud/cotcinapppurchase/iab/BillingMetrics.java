@@ -0,0 +1,220 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and outcome of each phase of the purchase pipeline, from the connection to the billing
+ * service to the messages sent to Unity. Recording is lock-free and cheap enough to be done on
+ * every call, from any thread.
+ * Latencies go to histograms with buckets growing exponentially (8 per power of two), so that
+ * percentiles are accurate to within 12.5% whatever their magnitude.
+ */
+public final class BillingMetrics {
+	/**
+	 * Phases measured. Errors are recorded with the code of the layer they come from: billing
+	 * response codes (or IABHELPER_* codes) for calls to the billing service, ErrorCode values for
+	 * the operations of the Store.
+	 */
+	public enum Phase {
+		/** Binding of the billing service, from the request to the connection. */
+		Bind("bind"),
+		BillingSupported("billingSupported"),
+		/** One call to getSkuDetails (at most SKU_DETAILS_CHUNK_SIZE products). */
+		SkuDetails("skuDetails"),
+		/** One page of getPurchases. */
+		PurchasesPage("purchasesPage"),
+		BuyIntent("buyIntent"),
+		/** From the start of the PurchaseActivity to the moment it can launch the purchase. */
+		PurchaseActivityStart("purchaseActivityStart"),
+		/** From the launch of the buy intent to its activity result (includes the user's time). */
+		PurchaseFlow("purchaseFlow"),
+		Consume("consume"),
+		/** Operations of the Store, from the call from Unity to the message sent back. */
+		ListProducts("listProducts"),
+		LaunchPurchase("launchPurchase"),
+		TerminatePurchase("terminatePurchase"),
+		TerminatePurchases("terminatePurchases");
+
+		Phase(String key) {
+			this.key = key;
+		}
+
+		/** Name of the phase in the JSON snapshot. */
+		public final String key;
+	}
+
+	// Sub-buckets per power of two
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Latencies are capped to 2^40 us (12 days)
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final PhaseStats[] mStats = new PhaseStats[Phase.values().length];
+
+	BillingMetrics() {
+		for (int i = 0; i < mStats.length; i++) {
+			mStats[i] = new PhaseStats();
+		}
+	}
+
+	/**
+	 * @return A start time to be passed to record.
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the completion of a phase. Can be called from any thread.
+	 * @param phase The phase.
+	 * @param startNanos Value returned by start() when the phase began.
+	 * @param errorCode 0 if the phase succeeded, the code of the error otherwise.
+	 */
+	public void record(Phase phase, long startNanos, int errorCode) {
+		mStats[phase.ordinal()].record((System.nanoTime() - startNanos) / 1000, errorCode);
+	}
+
+	/**
+	 * Forgets everything recorded so far, e.g. after the figures have been sent.
+	 */
+	public void reset() {
+		for (PhaseStats stats : mStats) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * @return A snapshot of the phases that have been recorded at least once, as a JSON object with
+	 * one member per phase. Each one contains the `count` of completions, the number of `errors`
+	 * by code, and the latency in milliseconds (`mean`, `p50`, `p95`, `p99` and `max`).
+	 */
+	public String toJson() {
+		JsonWriter out = JsonWriter.obtain().beginObject();
+		try {
+			for (Phase phase : Phase.values()) {
+				PhaseStats stats = mStats[phase.ordinal()];
+				long[] buckets = stats.snapshotBuckets();
+				long count = 0;
+				for (long c : buckets) {
+					count += c;
+				}
+				if (count == 0) { continue; }
+				long maxMicros = stats.mMaxMicros.get();
+				out.name(phase.key).beginObject();
+				out.name("count").value(count);
+				out.name("errors").beginObject();
+				for (Map.Entry<Integer, AtomicLong> error : new TreeMap<Integer, AtomicLong>(stats.mErrors).entrySet()) {
+					if (error.getValue().get() > 0) {
+						out.name(String.valueOf(error.getKey())).value(error.getValue().get());
+					}
+				}
+				out.endObject();
+				out.name("mean").value(millis(stats.mSumMicros.get() / Math.max(1, stats.mCount.get())));
+				out.name("p50").value(millis(percentile(buckets, count, 0.50, maxMicros)));
+				out.name("p95").value(millis(percentile(buckets, count, 0.95, maxMicros)));
+				out.name("p99").value(millis(percentile(buckets, count, 0.99, maxMicros)));
+				out.name("max").value(millis(maxMicros));
+				out.endObject();
+			}
+			return out.endObject().toStringAndRelease();
+		} finally {
+			out.release();
+		}
+	}
+
+	// Milliseconds with a resolution of 0.01 ms
+	private static double millis(long micros) {
+		return Math.round(micros / 10.0) / 100.0;
+	}
+
+	/**
+	 * @return The middle of the bucket containing the given percentile, capped to the maximum.
+	 */
+	private static long percentile(long[] buckets, long count, double p, long maxMicros) {
+		long rank = (long) Math.ceil(p * count), seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(maxMicros, (bucketLowerBound(i) + bucketLowerBound(i + 1) - 1) / 2);
+			}
+		}
+		return maxMicros;
+	}
+
+	/**
+	 * Values below SUB_BUCKETS have a bucket of their own. Above, each power of two is split in
+	 * SUB_BUCKETS buckets of equal width.
+	 */
+	static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(0, micros);
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		if (exponent == MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long bucketLowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	private static class PhaseStats {
+		final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+		final AtomicLong mCount = new AtomicLong();
+		final AtomicLong mSumMicros = new AtomicLong();
+		final AtomicLong mMaxMicros = new AtomicLong();
+		// Few distinct codes per phase: entries are created once and only incremented afterwards
+		final ConcurrentHashMap<Integer, AtomicLong> mErrors = new ConcurrentHashMap<Integer, AtomicLong>();
+
+		void record(long micros, int errorCode) {
+			mBuckets.incrementAndGet(bucketIndex(micros));
+			mCount.incrementAndGet();
+			mSumMicros.addAndGet(micros);
+			long max;
+			while (micros > (max = mMaxMicros.get()) && !mMaxMicros.compareAndSet(max, micros)) {
+				// Retry, another thread has just raised the maximum
+			}
+			if (errorCode != 0) {
+				AtomicLong errors = mErrors.get(errorCode);
+				if (errors == null) {
+					AtomicLong created = new AtomicLong();
+					errors = mErrors.putIfAbsent(errorCode, created);
+					if (errors == null) { errors = created; }
+				}
+				errors.incrementAndGet();
+			}
+		}
+
+		long[] snapshotBuckets() {
+			long[] buckets = new long[BUCKET_COUNT];
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				buckets[i] = mBuckets.get(i);
+			}
+			return buckets;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				mBuckets.set(i, 0);
+			}
+			mCount.set(0);
+			mSumMicros.set(0);
+			mMaxMicros.set(0);
+			for (AtomicLong errors : mErrors.values()) {
+				errors.set(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.content.IntentSender;
+
+/**
+ * Outcome of the preparation of a purchase: either the intent showing the purchase sheet of Google
+ * Play, ready to be started from an activity, or the purchase of the item if it is already owned
+ * (it then needs to be terminated rather than bought again).
+ */
+public class BuyIntent {
+	private final String mSku;
+	private final String mItemType;
+	private final IntentSender mIntentSender;
+	private final Purchase mOwnedPurchase;
+
+	BuyIntent(String sku, String itemType, IntentSender intentSender, Purchase ownedPurchase) {
+		mSku = sku;
+		mItemType = itemType;
+		mIntentSender = intentSender;
+		mOwnedPurchase = ownedPurchase;
+	}
+
+	public String getSku() { return mSku; }
+	String getItemType() { return mItemType; }
+	/** @return Intent to pass to IabHelper.startBuyIntent; null if the item is already owned. */
+	public IntentSender getIntentSender() { return mIntentSender; }
+	/** @return The pending purchase of the item if it is already owned, null otherwise. */
+	public Purchase getOwnedPurchase() { return mOwnedPurchase; }
+}
@@ -0,0 +1,25 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+/**
+ * Outcome of the consumption of one purchase token, as part of a batch.
+ */
+public class ConsumeResult {
+	private final String mSku;
+	private final String mToken;
+	private final ErrorCode mCode;
+	private final String mDescription;
+
+	ConsumeResult(String sku, String token, ErrorCode code, String description) {
+		mSku = sku;
+		mToken = token;
+		mCode = code;
+		mDescription = description;
+	}
+
+	public String getSku() { return mSku; }
+	public String getToken() { return mToken; }
+	/** @return ErrorCode.Ok if the purchase has been consumed. */
+	public ErrorCode getCode() { return mCode; }
+	/** @return Description of the error; null if the purchase has been consumed. */
+	public String getDescription() { return mDescription; }
+}
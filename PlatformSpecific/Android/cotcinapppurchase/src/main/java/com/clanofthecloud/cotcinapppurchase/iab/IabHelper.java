@@ -2,28 +2,29 @@ package com.clanofthecloud.cotcinapppurchase.iab;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.vending.billing.IInAppBillingService;
 import com.clanofthecloud.cotcinapppurchase.Store;
 import com.unity3d.player.UnityPlayer;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Performs low level tasks related to Android In-App Billing.
@@ -33,8 +34,8 @@ public class IabHelper {
 	public static interface SetupListener {
 		void onDone(IabHelper handler, IabResult result);
 	}
-	public static interface CloudResultListener {
-		void onDone(JSONObject result);
+	public static interface CloudResultListener<T> {
+		void onDone(T result);
 		void onError(ErrorCode code, String description);
 	}
 
@@ -82,18 +83,26 @@ public class IabHelper {
 	// some fields on the getSkuDetails response bundle
 	public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
 	public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
+	// Maximum number of SKUs accepted by a single getSkuDetails call
+	public static final int SKU_DETAILS_CHUNK_SIZE = 20;
 
 	// Other variables
 	private static class SingletonHolder {
 		private static final IabHelper INSTANCE = new IabHelper();
 	}
 
-	private IInAppBillingService mService;
-	private ServiceConnection mServiceConn;
-	private boolean mDisposed, mSetupDone;
+	private final BillingExecutor mExecutor = new BillingExecutor();
+	private final SkuDetailsCache mSkuDetailsCache = new SkuDetailsCache();
+	private final SkuDetailsSnapshot mSkuDetailsSnapshot = new SkuDetailsSnapshot();
+	private final Inventory mInventory = new Inventory();
+	private final ReceiptVerifier mReceiptVerifier = new ReceiptVerifier();
+	private final BillingMetrics mMetrics = new BillingMetrics();
+	private final BillingConnection mConnection = new BillingConnection(mExecutor, mMetrics);
+	private boolean mDisposed;
 	private int mRequestCode;
 	private String mPurchasingItemType;
-	private CloudResultListener mPurchaseListener;
+	private CloudResultListener<Purchase> mPurchaseListener;
+	private long mPurchaseFlowStartedAt;
 
 	/**
 	 * Call this to retrieve an instance of the IabHelper and ensure that you are on the UI thread
@@ -111,114 +120,332 @@ public class IabHelper {
 	}
 
 	/**
-	 * Lists details about products available on the Store.
+	 * Starts setting up the billing service in the background, so that it is ready by the time the
+	 * first operation needs it. Operations issued meanwhile will wait for this setup.
+	 * @param activity activity that will be used to invoke your listener on the main thread.
+	 */
+	public static void warmUp(Activity activity) {
+		getHandler(activity, new SetupListener() {
+			@Override
+			public void onDone(IabHelper handler, IabResult result) {
+				Log.v(TAG, "Warm-up done: " + result);
+			}
+		});
+	}
+
+	/**
+	 * Lists details about products available on the Store. Details still valid in the SKU details
+	 * cache are used as is, only the missing ones are queried to the billing service.
 	 * @param skus List of SKUs (product ID) to query for.
-	 * @param listener Called upon termination, whether successful or not. The JSON object returned
-	 *                 if the code is enNoErr is ready to be sent back as a response to listProducts.
+	 * @param listener Called upon termination, whether successful or not. The list may contain
+	 *                 errors if details could only be fetched partially.
 	 */
-	public void getProductDetails(final ArrayList<String> skus, final CloudResultListener listener) {
-		if (!mSetupDone || mDisposed) {
+	public void getProductDetails(final ArrayList<String> skus, final CloudResultListener<ProductList> listener) {
+		if (mDisposed) {
 			listener.onError(ErrorCode.LogicError, "Setup not done properly.");
 			return;
 		}
+		boolean connected = ensureConnected(listener, new Runnable() {
+			public void run() {
+				getProductDetails(skus, listener);
+			}
+		});
+		if (!connected) { return; }
 		// No product, would fail if queried like that to Google
 		if (skus.size() == 0) {
 			postEmptyProductList(listener);
 			return;
 		}
 
+		// Split between what we already know and what needs to be fetched
+		final LinkedHashMap<String, SkuDetails> found = new LinkedHashMap<String, SkuDetails>();
+		final ArrayList<String> missingSkus = new ArrayList<String>();
+		for (String sku : new LinkedHashSet<String>(skus)) {
+			SkuDetails cached = mSkuDetailsCache.get(sku);
+			found.put(sku, cached);
+			if (cached == null) {
+				missingSkus.add(sku);
+			}
+		}
+
 		final Handler handler = new Handler();
-		(new Thread(new Runnable() {
-			public void run() {
+		if (missingSkus.isEmpty()) {
+			Log.v(TAG, "All " + found.size() + " product details served from cache.");
+			postProductList(handler, listener, found.values(), null);
+			return;
+		}
+
+		new ProductDetailsQuery(handler, listener, found).start(missingSkus);
+	}
+
+	/**
+	 * Fetches product details by chunks of at most SKU_DETAILS_CHUNK_SIZE SKUs, since the billing
+	 * service refuses bigger lists. Up to WORKER_COUNT workers of the billing executor take the next
+	 * chunk to query until there are none left, so that a large catalog does not flood the queue
+	 * of the executor; the last chunk to complete posts the merged result. Chunks that fail are
+	 * reported in an `errors` array next to the products; the whole query only fails if every
+	 * chunk fails.
+	 */
+	private class ProductDetailsQuery {
+		private final Handler mHandler;
+		private final CloudResultListener<ProductList> mListener;
+		// Requested SKUs in order, with the details found so far (guarded by itself)
+		private final LinkedHashMap<String, SkuDetails> mFound;
+		private final List<ProductList.QueryError> mErrors = new ArrayList<ProductList.QueryError>();
+		private final List<ArrayList<String>> mChunks = new ArrayList<ArrayList<String>>();
+		private final AtomicInteger mNextChunk = new AtomicInteger();
+		private final AtomicInteger mPendingChunks = new AtomicInteger();
+
+		ProductDetailsQuery(Handler handler, CloudResultListener<ProductList> listener, LinkedHashMap<String, SkuDetails> found) {
+			mHandler = handler;
+			mListener = listener;
+			mFound = found;
+		}
+
+		void start(ArrayList<String> skus) {
+			for (int i = 0; i < skus.size(); i += SKU_DETAILS_CHUNK_SIZE) {
+				mChunks.add(new ArrayList<String>(skus.subList(i, Math.min(i + SKU_DETAILS_CHUNK_SIZE, skus.size()))));
+			}
+			mPendingChunks.set(mChunks.size());
+			Log.v(TAG, "Querying details for " + skus.size() + " products in " + mChunks.size() + " chunk(s).");
+			// Each worker takes the next chunk to query until there are none left
+			Runnable worker = new Runnable() {
+				public void run() {
+					for (int i; (i = mNextChunk.getAndIncrement()) < mChunks.size(); ) {
+						queryChunk(mChunks.get(i));
+					}
+				}
+			};
+			boolean anyScheduled = false;
+			int workerCount = Math.min(BillingExecutor.WORKER_COUNT, mChunks.size());
+			for (int i = 0; i < workerCount; i++) {
+				anyScheduled |= mExecutor.execute(worker);
+			}
+			if (!anyScheduled) {
+				for (ArrayList<String> chunk : mChunks) {
+					chunkFailed(chunk, ErrorCode.AlreadyInProgress, "Too many billing operations in progress, try again later.");
+				}
+			}
+		}
+
+		private void queryChunk(ArrayList<String> chunk) {
 			Context context = getApplicationContext();
 			Bundle querySkus = new Bundle();
-			querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skus);
+			querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, chunk);
+			long started = BillingMetrics.start();
 			try {
-				Bundle skuDetails = mService.getSkuDetails(3, context.getPackageName(), ITEM_TYPE_INAPP, querySkus);
+				Bundle skuDetails = mConnection.getService().getSkuDetails(3, context.getPackageName(), ITEM_TYPE_INAPP, querySkus);
+				mMetrics.record(BillingMetrics.Phase.SkuDetails, started, IabUtil.getResponseCodeFromBundle(skuDetails));
 
 				if (skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
 					ArrayList<String> responseList = skuDetails.getStringArrayList(
 						RESPONSE_GET_SKU_DETAILS_LIST);
 
 					try {
-						// Received products, decode and fill them in the response
-						JSONObject result = new JSONObject();
-						JSONArray products = new JSONArray();
+						// Received products, decode and remember them
+						List<SkuDetails> received = new ArrayList<SkuDetails>(responseList.size());
 						for (String thisResponse : responseList) {
-							SkuDetails d = new SkuDetails(ITEM_TYPE_INAPP, thisResponse);
-							JSONObject p = new JSONObject();
-							// We could add much more info (see SkuDetails), but let's limit to that for now
-							p.put("internalProductId", d.getSku());
-							p.put("price", d.getPriceAmount());
-							p.put("currency", d.getPriceCurrency());
-							products.put(p);
+							received.add(new SkuDetails(ITEM_TYPE_INAPP, thisResponse));
+						}
+						for (SkuDetails d : received) {
+							mSkuDetailsCache.put(d);
+							mSkuDetailsSnapshot.put(d);
 						}
-						result.put("products", products);
-						postResult(handler, listener, result);
+						synchronized (mFound) {
+							for (SkuDetails d : received) {
+								mFound.put(d.getSku(), d);
+							}
+						}
+						chunkDone();
 
 					} catch (JSONException e) {
 						e.printStackTrace();
-						postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Invalid response from Google Play: " + e.getMessage());
+						chunkFailed(chunk, ErrorCode.ErrorWithExternalStore, "Invalid response from Google Play: " + e.getMessage());
 					}
 				} else {
 					int response = IabUtil.getResponseCodeFromBundle(skuDetails);
 					if (response != BILLING_RESPONSE_RESULT_OK) {
-						postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "getSkuDetails() failed: " + IabUtil.getResponseDesc(response));
+						chunkFailed(chunk, ErrorCode.ErrorWithExternalStore, "getSkuDetails() failed: " + IabUtil.getResponseDesc(response));
 					} else {
-						postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "getSkuDetails() returned a bundle with neither an error nor a detail list.");
+						chunkFailed(chunk, ErrorCode.ErrorWithExternalStore, "getSkuDetails() returned a bundle with neither an error nor a detail list.");
 					}
 				}
 			} catch (RemoteException ex) {
-				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "getSkuDetails(): exception on remote call.");
+				mMetrics.record(BillingMetrics.Phase.SkuDetails, started, IABHELPER_REMOTE_EXCEPTION);
+				chunkFailed(chunk, ErrorCode.ErrorWithExternalStore, "getSkuDetails(): exception on remote call.");
 			}
+		}
+
+		private void chunkFailed(ArrayList<String> chunk, ErrorCode code, String description) {
+			Log.w(TAG, "Failed to fetch details for " + chunk.size() + " products: " + description);
+			synchronized (mErrors) {
+				mErrors.add(new ProductList.QueryError(chunk, code, description));
 			}
-		})).start();
+			chunkDone();
+		}
+
+		private void chunkDone() {
+			if (mPendingChunks.decrementAndGet() > 0) { return; }
+			// Last chunk; every other one has completed at this point. May be on the UI thread if
+			// it was rejected, so the snapshot is written on a worker (or next time if none is free).
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					mSkuDetailsSnapshot.save();
+				}
+			});
+			if (mErrors.size() == mChunks.size()) {
+				ProductList.QueryError first = mErrors.get(0);
+				postResult(mHandler, mListener, first.getCode(), first.getDescription());
+				return;
+			}
+			synchronized (mFound) {
+				postProductList(mHandler, mListener, mFound.values(), mErrors);
+			}
+		}
+	}
+
+	/**
+	 * @return The cache used by getProductDetails. Can be used to tune it or read its statistics.
+	 */
+	public static SkuDetailsCache sGetSkuDetailsCache() {
+		return SingletonHolder.INSTANCE.mSkuDetailsCache;
+	}
+
+	/**
+	 * @return The snapshot of product details persisted on disk. Empty unless enabled.
+	 */
+	public static SkuDetailsSnapshot sGetSkuDetailsSnapshot() {
+		return SingletonHolder.INSTANCE.mSkuDetailsSnapshot;
+	}
+
+	/**
+	 * Starts persisting the product details returned by the billing service, and loads the ones
+	 * persisted previously in the background.
+	 * @param filesDir Directory of the application files, from Context.getFilesDir.
+	 */
+	public static void sEnableSkuDetailsSnapshot(final File filesDir) {
+		final SkuDetailsSnapshot snapshot = SingletonHolder.INSTANCE.mSkuDetailsSnapshot;
+		snapshot.enable();
+		boolean accepted = SingletonHolder.INSTANCE.mExecutor.execute(new Runnable() {
+			public void run() {
+				snapshot.load(filesDir);
+			}
+		});
+		if (!accepted) {
+			Log.w(TAG, "Could not load the product details snapshot, billing queue full.");
+		}
+	}
+
+	/**
+	 * @return The verifier applied to purchases before they are reported. Disabled by default.
+	 */
+	public static ReceiptVerifier sGetReceiptVerifier() {
+		return SingletonHolder.INSTANCE.mReceiptVerifier;
 	}
 
 	/**
-	 * Launches the purchase flow.
+	 * @return Latency and outcome of the phases of the purchase pipeline, including the operations
+	 * of the Store.
+	 */
+	public static BillingMetrics sGetMetrics() {
+		return SingletonHolder.INSTANCE.mMetrics;
+	}
+
+	/**
+	 * Replaces the Google Play billing service with another provider of the billing API, e.g. a
+	 * fake one for tests. Must be called from the UI thread, before billing is set up or after it
+	 * has been disposed.
+	 * @throws IllegalStateException if billing is set up with the current backend.
+	 */
+	public static void sSetBillingBackend(BillingBackend backend) {
+		SingletonHolder.INSTANCE.mConnection.setBackend(backend);
+	}
+
+	/**
+	 * Launches the purchase flow. Shorthand for prepareBuyIntent followed by startBuyIntent; an
+	 * item already owned is passed to the listener without showing the purchase sheet.
 	 * @param activity Parent activity.
 	 * @param requestCode Request code that will be triggered to the activity when the purchase flow
 	 *                    finishes or cancels.
 	 * @param sku SKU of the item to be purchased.
 	 * @param developerPayload Custom data to be provided to Google servers.
-	 * @param listener Listener getting called asynchronously when the purchase ends. In case the
-	 *                 listener is called with enNoErr, the message parameter contains the
-	 *                 continuation token, which is to be passed back to terminatePurchase.
+	 * @param listener Listener getting called asynchronously when the purchase ends. The token of
+	 *                 the purchase is to be passed back to terminatePurchase.
 	 */
-	public void launchPurchase(final Activity activity, final int requestCode, final String sku, final String developerPayload, final CloudResultListener listener) {
-		if (!mSetupDone || mDisposed || mPurchaseListener != null) {
+	public void launchPurchase(final Activity activity, final int requestCode, final String sku, final String developerPayload, final CloudResultListener<Purchase> listener) {
+		prepareBuyIntent(sku, developerPayload, new CloudResultListener<BuyIntent>() {
+			@Override
+			public void onDone(BuyIntent buyIntent) {
+				if (buyIntent.getOwnedPurchase() != null) {
+					listener.onDone(buyIntent.getOwnedPurchase());
+				} else {
+					startBuyIntent(activity, requestCode, buyIntent, listener);
+				}
+			}
+
+			@Override
+			public void onError(ErrorCode code, String description) {
+				listener.onError(code, description);
+			}
+		});
+	}
+
+	/**
+	 * First step of the purchase flow: fetches the intent showing the purchase sheet of Google
+	 * Play, without needing an activity. This lets the caller start its activity only once the
+	 * sheet is ready to be shown.
+	 * @param sku SKU of the item to be purchased.
+	 * @param developerPayload Custom data to be provided to Google servers.
+	 * @param listener Listener getting called asynchronously with the intent, or with the pending
+	 *                 purchase if the item is already owned.
+	 */
+	public void prepareBuyIntent(final String sku, final String developerPayload, final CloudResultListener<BuyIntent> listener) {
+		if (mDisposed || mPurchaseListener != null) {
 			listener.onError(ErrorCode.LogicError, "Setup not done properly or purchase already in process.");
 			return;
 		}
+		boolean connected = ensureConnected(listener, new Runnable() {
+			public void run() {
+				prepareBuyIntent(sku, developerPayload, listener);
+			}
+		});
+		if (!connected) { return; }
 
 		final Handler handler = new Handler();
-		(new Thread(new Runnable() {
+		runOnBillingThread(handler, listener, new Runnable() {
 		public void run() {
 			Context context = getApplicationContext();
 			String itemType = ITEM_TYPE_INAPP;
 			try {
-				// Query already purchased items
-				List<Purchase> purchases = new ArrayList<Purchase>();
-				int response = queryPurchases(purchases);
-				if (response != BILLING_RESPONSE_RESULT_OK) {
-					Log.e(TAG, "Query purchases failed, Error response: " + IabUtil.getResponseDesc(response));
-					postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Query purchases failed");
+				// An item known to be owned needs no buy intent. The inventory is not loaded up front: if the
+				// item is owned without us knowing, the billing service tells below.
+				Purchase owned = mInventory.get(sku);
+				if (owned != null) {
+					postResult(handler, listener, new BuyIntent(sku, itemType, null, owned));
 					return;
 				}
 
-				// Find if the one we're trying to purchase is already purchased
-				for (Purchase p: purchases) {
-					if (p.getSku().equals(sku)) {
-						postResult(handler, listener, getPurchaseResultJson(p));
+				Log.v(TAG, "Constructing buy intent for " + sku + ", item type: " + itemType);
+				long started = BillingMetrics.start();
+				Bundle buyIntentBundle;
+				try {
+					buyIntentBundle = mConnection.getService().getBuyIntent(3, context.getPackageName(), sku, itemType, developerPayload);
+				} catch (RemoteException e) {
+					mMetrics.record(BillingMetrics.Phase.BuyIntent, started, IABHELPER_REMOTE_EXCEPTION);
+					throw e;
+				}
+				int response = IabUtil.getResponseCodeFromBundle(buyIntentBundle);
+				mMetrics.record(BillingMetrics.Phase.BuyIntent, started, response);
+				if (response == BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED) {
+					// Our inventory is outdated (purchased from another device?) or not loaded yet, reload it
+					Log.v(TAG, "Item " + sku + " already owned, refreshing inventory.");
+					int refreshResponse = loadInventory();
+					owned = mInventory.get(sku);
+					if (refreshResponse == BILLING_RESPONSE_RESULT_OK && owned != null) {
+						postResult(handler, listener, new BuyIntent(sku, itemType, null, owned));
 						return;
 					}
 				}
-
-				// Launch the actual purchase
-				Log.v(TAG, "Constructing buy intent for " + sku + ", item type: " + itemType);
-				Bundle buyIntentBundle = mService.getBuyIntent(3, context.getPackageName(), sku, itemType, developerPayload);
-				response = IabUtil.getResponseCodeFromBundle(buyIntentBundle);
 				if (response != BILLING_RESPONSE_RESULT_OK) {
 					Log.e(TAG, "Unable to buy item, Error response: " + IabUtil.getResponseDesc(response));
 					postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Unable to buy item");
@@ -226,24 +453,47 @@ public class IabHelper {
 				}
 
 				PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-				Log.v(TAG, "Launching buy intent for " + sku + ". Request code: " + requestCode);
-				mRequestCode = requestCode;
-				mPurchaseListener = listener;
-				mPurchasingItemType = itemType;
-				activity.startIntentSenderForResult(pendingIntent.getIntentSender(), requestCode, new Intent(), 0, 0, 0);
-			} catch (IntentSender.SendIntentException e) {
-				Log.e(TAG, "SendIntentException while launching purchase flow for sku " + sku);
-				e.printStackTrace();
-				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "launchPurchase(): failed to send buy intent.");
+				postResult(handler, listener, new BuyIntent(sku, itemType, pendingIntent.getIntentSender(), null));
 			} catch (RemoteException e) {
-				Log.e(TAG, "RemoteException while launching purchase flow for sku " + sku);
+				Log.e(TAG, "RemoteException while preparing purchase flow for sku " + sku);
 				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "launchPurchase(): exception on remote call.");
 			} catch (JSONException e) {
-				Log.e(TAG, "JSONException while launching purchase flow for sku " + sku);
+				Log.e(TAG, "JSONException while preparing purchase flow for sku " + sku);
 				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "launchPurchase(): exception decoding JSON.");
 			}
 		}
-		})).start();
+		});
+	}
+
+	/**
+	 * Second step of the purchase flow: shows the purchase sheet of Google Play. The result is
+	 * delivered to the activity, which must forward it to sHandleActivityResult. Must be called
+	 * from the UI thread.
+	 * @param activity Activity receiving the result of the purchase flow.
+	 * @param requestCode Request code that will be triggered to the activity when the purchase flow
+	 *                    finishes or cancels.
+	 * @param buyIntent Intent returned by prepareBuyIntent (for an item not owned).
+	 * @param listener Listener getting called when the purchase ends. The token of the purchase is
+	 *                 to be passed back to terminatePurchase.
+	 */
+	public void startBuyIntent(Activity activity, int requestCode, BuyIntent buyIntent, CloudResultListener<Purchase> listener) {
+		if (mDisposed || mPurchaseListener != null) {
+			listener.onError(ErrorCode.LogicError, "Setup not done properly or purchase already in process.");
+			return;
+		}
+		Log.v(TAG, "Launching buy intent for " + buyIntent.getSku() + ". Request code: " + requestCode);
+		mRequestCode = requestCode;
+		mPurchaseListener = listener;
+		mPurchasingItemType = buyIntent.getItemType();
+		mPurchaseFlowStartedAt = BillingMetrics.start();
+		try {
+			activity.startIntentSenderForResult(buyIntent.getIntentSender(), requestCode, new Intent(), 0, 0, 0);
+		} catch (IntentSender.SendIntentException e) {
+			Log.e(TAG, "SendIntentException while launching purchase flow for sku " + buyIntent.getSku());
+			mPurchaseListener = null;
+			mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_SEND_INTENT_FAILED);
+			listener.onError(ErrorCode.ErrorWithExternalStore, "launchPurchase(): failed to send buy intent.");
+		}
 	}
 
 	/**
@@ -253,6 +503,18 @@ public class IabHelper {
 		return SingletonHolder.INSTANCE.handleActivityResult(requestCode, resultCode, data);
 	}
 
+	/**
+	 * Entry point from the outside for the #dispose method. Can be called from any thread.
+	 */
+	public static void sDispose() {
+		final IabHelper helper = SingletonHolder.INSTANCE;
+		UnityPlayer.currentActivity.runOnUiThread(new Runnable() {
+			public void run() {
+				helper.dispose();
+			}
+		});
+	}
+
 	/**
 	 * Consumes a purchase so it won't be reported again as a pending purchase.
 	 * @param sku The SKU of the item.
@@ -260,33 +522,165 @@ public class IabHelper {
 	 *              parameter.
 	 * @param listener Listener called in case of success or failure.
 	 */
-	public void terminatePurchase(final String sku, final String token, final CloudResultListener listener) {
+	public void terminatePurchase(final String sku, final String token, final CloudResultListener<Void> listener) {
+		boolean connected = ensureConnected(listener, new Runnable() {
+			public void run() {
+				terminatePurchase(sku, token, listener);
+			}
+		});
+		if (!connected) { return; }
+
 		final Handler handler = new Handler();
 		final String itemType = ITEM_TYPE_INAPP;
-		(new Thread(new Runnable() {
+		runOnBillingThread(handler, listener, new Runnable() {
 			public void run() {
 			if (!itemType.equals(ITEM_TYPE_INAPP)) {
 				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Items of type '" + itemType + "' can't be consumed.");
 				return;
 			}
 
-			try {
-				Log.v(TAG, "Consuming sku: " + sku + ", token: " + token);
-				int response = mService.consumePurchase(3, getApplicationContext().getPackageName(), token);
-				if (response == BILLING_RESPONSE_RESULT_OK) {
-					Log.v(TAG, "Successfully consumed sku: " + sku);
-					postResult(handler, listener, new JSONObject());
+			ConsumeResult result = consume(sku, token);
+			if (result.getCode() == ErrorCode.Ok) {
+				postResult(handler, listener, (Void) null);
+			} else {
+				postResult(handler, listener, result.getCode(), result.getDescription());
+			}
+			}
+		});
+	}
+
+	/**
+	 * Consumes several purchases. At most BillingExecutor.WORKER_COUNT of them are consumed at the
+	 * same time, and the batch takes as many slots of the billing queue, however large it is.
+	 * A token appearing more than once is only consumed for its first occurrence; the following
+	 * ones are answered with ErrorCode.BadParameters.
+	 * @param tokens Consumption tokens of the purchases.
+	 * @param skus SKU of the item for each token, in the same order.
+	 * @param listener Listener called once all purchases have been processed, with the outcome for
+	 *                 each token, in the order of the list. Only fails if the batch could not start.
+	 */
+	public void terminatePurchases(final List<String> tokens, final List<String> skus, final CloudResultListener<List<ConsumeResult>> listener) {
+		boolean connected = ensureConnected(listener, new Runnable() {
+			public void run() {
+				terminatePurchases(tokens, skus, listener);
+			}
+		});
+		if (!connected) { return; }
+
+		final ConsumeResult[] results = new ConsumeResult[tokens.size()];
+		HashSet<String> seenTokens = new HashSet<String>();
+		for (int i = 0; i < tokens.size(); i++) {
+			if (!seenTokens.add(tokens.get(i))) {
+				results[i] = new ConsumeResult(skus.get(i), tokens.get(i), ErrorCode.BadParameters, "Duplicate token in the batch");
+			}
+		}
+		if (tokens.isEmpty()) {
+			listener.onDone(Arrays.asList(results));
+			return;
+		}
+		final Handler handler = new Handler();
+		final AtomicInteger nextPurchase = new AtomicInteger();
+		int workerCount = Math.min(BillingExecutor.WORKER_COUNT, tokens.size());
+		final AtomicInteger runningWorkers = new AtomicInteger(workerCount);
+		// Each worker takes the next purchase to consume until there are none left
+		Runnable worker = new Runnable() {
+			public void run() {
+				for (int i; (i = nextPurchase.getAndIncrement()) < tokens.size(); ) {
+					// Duplicates have been answered already
+					if (results[i] == null) {
+						results[i] = consume(skus.get(i), tokens.get(i));
+					}
 				}
-				else {
-					Log.v(TAG, "Error consuming consuming sku " + sku + ". " + IabUtil.getResponseDesc(response));
-					postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Error consuming sku " + sku);
+				if (runningWorkers.decrementAndGet() == 0) {
+					postResult(handler, listener, Arrays.asList(results));
 				}
 			}
-			catch (RemoteException e) {
-				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Remote exception while consuming " + sku);
+		};
+		boolean anyScheduled = false;
+		for (int i = 0; i < workerCount; i++) {
+			if (mExecutor.execute(worker)) {
+				anyScheduled = true;
+			} else if (runningWorkers.decrementAndGet() == 0) {
+				// The workers scheduled so far (if any) have consumed everything already
+				if (anyScheduled) {
+					postResult(handler, listener, Arrays.asList(results));
+				} else {
+					postResult(handler, listener, ErrorCode.AlreadyInProgress, "Too many billing operations in progress, try again later.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Consumes a purchase. Blocking, to be run on the billing executor.
+	 * @return The outcome of the consumption.
+	 */
+	private ConsumeResult consume(String sku, String token) {
+		long started = BillingMetrics.start();
+		try {
+			Log.v(TAG, "Consuming sku: " + sku + ", token: " + token);
+			int response = mConnection.getService().consumePurchase(3, getApplicationContext().getPackageName(), token);
+			mMetrics.record(BillingMetrics.Phase.Consume, started, response);
+			if (response == BILLING_RESPONSE_RESULT_OK) {
+				Log.v(TAG, "Successfully consumed sku: " + sku);
+				mInventory.remove(sku);
+				return new ConsumeResult(sku, token, ErrorCode.Ok, null);
+			}
+			Log.v(TAG, "Error consuming consuming sku " + sku + ". " + IabUtil.getResponseDesc(response));
+			return new ConsumeResult(sku, token, ErrorCode.ErrorWithExternalStore, "Error consuming sku " + sku);
+		}
+		catch (RemoteException e) {
+			mMetrics.record(BillingMetrics.Phase.Consume, started, IABHELPER_REMOTE_EXCEPTION);
+			return new ConsumeResult(sku, token, ErrorCode.ErrorWithExternalStore, "Remote exception while consuming " + sku);
+		}
+	}
+
+	/**
+	 * Reloads the list of purchases owned by the user from the billing service. The inventory is
+	 * otherwise only reloaded when a purchase fails because the item is already owned; in between,
+	 * it is kept up to date as purchases are made and consumed.
+	 * @param listener Listener called in case of success or failure, with all purchases owned.
+	 */
+	public void refreshInventory(final CloudResultListener<List<Purchase>> listener) {
+		if (mDisposed) {
+			listener.onError(ErrorCode.LogicError, "Setup not done properly.");
+			return;
+		}
+		boolean connected = ensureConnected(listener, new Runnable() {
+			public void run() {
+				refreshInventory(listener);
 			}
+		});
+		if (!connected) { return; }
+
+		final Handler handler = new Handler();
+		runOnBillingThread(handler, listener, new Runnable() {
+			public void run() {
+			try {
+				int response = loadInventory();
+				if (response != BILLING_RESPONSE_RESULT_OK) {
+					postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "Query purchases failed: " + IabUtil.getResponseDesc(response));
+					return;
+				}
+				postResult(handler, listener, mInventory.getAll());
+			} catch (RemoteException e) {
+				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "refreshInventory(): exception on remote call.");
+			} catch (JSONException e) {
+				postResult(handler, listener, ErrorCode.ErrorWithExternalStore, "refreshInventory(): exception decoding JSON.");
 			}
-		})).start();
+			}
+		});
+	}
+
+	/**
+	 * Releases the billing service. Operations already scheduled are allowed to complete, then the
+	 * service is unbound. The helper will be set up again by the next call to getHandler.
+	 */
+	public void dispose() {
+		// Another user may be signed in by the time we are set up again
+		mInventory.invalidate();
+		Log.v(TAG, "Disposing in-app billing, draining pending operations.");
+		mConnection.release();
 	}
 
 	/**
@@ -296,21 +690,11 @@ public class IabHelper {
 		return UnityPlayer.currentActivity;
 	}
 
-	private JSONObject getPurchaseResultJson(Purchase purchase) throws JSONException {
-		// Post the data to the listener
-		JSONObject result = new JSONObject();
-		result.put("store", "googleplay");
-		result.put("internalProductId", purchase.getSku());
-		result.put("receipt", purchase.getOriginalJson());
-		result.put("signature", purchase.getSignature());
-		result.put("token", purchase.getToken());
-		return result;
-	}
-
 	private boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
-		if (!mSetupDone || mDisposed || requestCode != mRequestCode || mPurchaseListener == null) { return false; }
+		if (mDisposed || requestCode != mRequestCode || mPurchaseListener == null) { return false; }
 
 		if (data == null) {
+			mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_BAD_RESPONSE);
 			mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "Null data in IAB result");
 			mPurchaseListener = null;
 			return true;
@@ -329,6 +713,7 @@ public class IabHelper {
 			if (purchaseData == null || dataSignature == null) {
 				Log.e(TAG, "BUG: either purchaseData or dataSignature is null.");
 				Log.v(TAG, "Extras: " + data.getExtras().toString());
+				mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_BAD_RESPONSE);
 				mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "IAB returned null purchaseData or dataSignature");
 				mPurchaseListener = null;
 				return true;
@@ -336,14 +721,25 @@ public class IabHelper {
 
 			try {
 				Purchase purchase = new Purchase(mPurchasingItemType, purchaseData, dataSignature);
+				if (!mReceiptVerifier.verify(purchase)) {
+					Log.e(TAG, "Purchase signature verification failed for sku " + purchase.getSku());
+					mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_VERIFICATION_FAILED);
+					mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "Purchase signature verification failed");
+					mPurchaseListener = null;
+					return true;
+				}
+				// Owned until consumed
+				mInventory.put(purchase);
+				mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, BILLING_RESPONSE_RESULT_OK);
 				// Post the data to the listener
-				mPurchaseListener.onDone(getPurchaseResultJson(purchase));
+				mPurchaseListener.onDone(purchase);
 				mPurchaseListener = null;
 				return  true;
 			}
 			catch (JSONException e) {
 				Log.e(TAG, "Failed to parse purchase data.");
 				e.printStackTrace();
+				mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_BAD_RESPONSE);
 				mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "Failed to parse purchase data");
 				mPurchaseListener = null;
 				return true;
@@ -352,16 +748,19 @@ public class IabHelper {
 		else if (resultCode == Activity.RESULT_OK) {
 			// result code was OK, but in-app billing response was not OK.
 			Log.v(TAG, "Result code was OK but in-app billing response was not OK: " + IabUtil.getResponseDesc(responseCode));
+			mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, responseCode);
 			mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "Problem purchasing item");
 			mPurchaseListener = null;
 		}
 		else if (resultCode == Activity.RESULT_CANCELED) {
 			Log.v(TAG, "Purchase canceled - Response: " + IabUtil.getResponseDesc(responseCode));
+			mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_USER_CANCELLED);
 			mPurchaseListener.onError(ErrorCode.Canceled, "Purchase canceled");
 			mPurchaseListener = null;
 		}
 		else {
 			Log.e(TAG, "Purchase failed. Result code: " + Integer.toString(resultCode) + ". Response: " + IabUtil.getResponseDesc(responseCode));
+			mMetrics.record(BillingMetrics.Phase.PurchaseFlow, mPurchaseFlowStartedAt, IABHELPER_UNKNOWN_PURCHASE_RESPONSE);
 			mPurchaseListener.onError(ErrorCode.ErrorWithExternalStore, "Unknown purchase response");
 			mPurchaseListener = null;
 		}
@@ -376,7 +775,7 @@ public class IabHelper {
 	 * @param code The error code.
 	 * @param message The error message, used if the error code is not 0.
 	 */
-	private static void postResult(Handler handler, final CloudResultListener listener, final ErrorCode code, final String message) {
+	private static void postResult(Handler handler, final CloudResultListener<?> listener, final ErrorCode code, final String message) {
 		// Post result on main thread
 		handler.post(new Runnable() {
 			public void run() {
@@ -390,9 +789,9 @@ public class IabHelper {
 	 * asynchronous tasks. This method is for successful cases.
 	 * @param handler A handler that you need to create before starting the async task.
 	 * @param listener The listener to call.
-	 * @param result The JSON result if any.
+	 * @param result The result if any.
 	 */
-	private static void postResult(Handler handler, final CloudResultListener listener, final JSONObject result) {
+	private static <T> void postResult(Handler handler, final CloudResultListener<T> listener, final T result) {
 		// Post result on main thread
 		handler.post(new Runnable() {
 			public void run() {
@@ -401,20 +800,83 @@ public class IabHelper {
 		});
 	}
 
+	/**
+	 * Runs a blocking billing operation on the billing executor. If too many operations are already
+	 * pending, the listener is notified with an error instead.
+	 * @param handler A handler that you need to create before starting the async task.
+	 * @param listener The listener to notify in case the task can not be scheduled.
+	 * @param task The operation to run. Responsible for posting its own result.
+	 */
+	private void runOnBillingThread(Handler handler, CloudResultListener<?> listener, Runnable task) {
+		if (!mExecutor.execute(task)) {
+			postResult(handler, listener, ErrorCode.AlreadyInProgress, "Too many billing operations in progress, try again later.");
+		}
+	}
+
+	/**
+	 * Checks that the billing service is connected before starting an operation. If it is not
+	 * (typically because it has been killed and is being reconnected), the operation is parked
+	 * until the connection is back rather than failed. Must be called from the UI thread.
+	 * @param listener The listener to notify if the service can not be connected.
+	 * @param replay Starts the operation again once the service is connected.
+	 * @return whether the operation can proceed now. If false, replay will be run later.
+	 */
+	private boolean ensureConnected(final CloudResultListener<?> listener, final Runnable replay) {
+		if (mConnection.isReady()) { return true; }
+		Log.v(TAG, "Billing service not connected, waiting for it.");
+		mConnection.whenReady(getApplicationContext(), new BillingConnection.ReadyListener() {
+			@Override
+			public void onReady(IabResult result) {
+				if (result.isSuccess()) {
+					replay.run();
+				} else {
+					listener.onError(ErrorCode.ErrorWithExternalStore, "Billing service unavailable: " + result.getMessage());
+				}
+			}
+		});
+		return false;
+	}
+
+	/**
+	 * Posts a product list as expected by listProducts.
+	 * @param handler A handler that you need to create before starting the async task.
+	 * @param listener The listener to call.
+	 * @param details Details of the products to list. Null entries (products unknown to the store)
+	 *                are skipped.
+	 * @param errors Parts of the query that failed, reported along with the products. May be null.
+	 */
+	private static void postProductList(Handler handler, CloudResultListener<ProductList> listener, Collection<SkuDetails> details, List<ProductList.QueryError> errors) {
+		List<SkuDetails> products = new ArrayList<SkuDetails>(details.size());
+		for (SkuDetails d : details) {
+			if (d != null) {
+				products.add(d);
+			}
+		}
+		postResult(handler, listener, new ProductList(products, errors));
+	}
+
 	/**
 	 * Sends an empty product list.
 	 * @param listener listener to receive the event
 	 */
-	private static void postEmptyProductList(CloudResultListener listener) {
-		try {
-			JSONObject result = new JSONObject();
-			JSONArray products = new JSONArray();
-			result.put("products", products);
-			listener.onDone(result);
-		} catch (JSONException e) {
-			e.printStackTrace();
-			listener.onError(ErrorCode.InternalError, "Error encoding JSON: " + e.getMessage());
+	private static void postEmptyProductList(CloudResultListener<ProductList> listener) {
+		listener.onDone(new ProductList(new ArrayList<SkuDetails>(), null));
+	}
+
+	/**
+	 * Fills the inventory with the purchases owned by the customer. Purchases whose signature is
+	 * invalid are left out if the receipt verifier is enabled. Blocking, call it from the billing
+	 * executor.
+	 * @return The error code (BILLING_RESPONSE_RESULT_OK if everything went ok)
+	 */
+	private int loadInventory() throws JSONException, RemoteException {
+		long loadStarted = mInventory.startLoad();
+		List<Purchase> purchases = new ArrayList<Purchase>();
+		int response = queryPurchases(purchases);
+		if (response == BILLING_RESPONSE_RESULT_OK) {
+			mInventory.fill(mReceiptVerifier.filterVerified(purchases), loadStarted);
 		}
+		return response;
 	}
 
 	/**
@@ -432,8 +894,16 @@ public class IabHelper {
 		Log.v(TAG, "Querying owned items, item type: " + itemType);
 		do {
 			Log.v(TAG, "Calling getPurchases with continuation token: " + continueToken);
-			Bundle ownedItems = mService.getPurchases(3, context.getPackageName(), itemType, continueToken);
+			long started = BillingMetrics.start();
+			Bundle ownedItems;
+			try {
+				ownedItems = mConnection.getService().getPurchases(3, context.getPackageName(), itemType, continueToken);
+			} catch (RemoteException e) {
+				mMetrics.record(BillingMetrics.Phase.PurchasesPage, started, IABHELPER_REMOTE_EXCEPTION);
+				throw e;
+			}
 			int response = IabUtil.getResponseCodeFromBundle(ownedItems);
+			mMetrics.record(BillingMetrics.Phase.PurchasesPage, started, response);
 			Log.d(TAG, "Owned items response: " + String.valueOf(response));
 			if (response != BILLING_RESPONSE_RESULT_OK) {
 				Log.v(TAG, "getPurchases() failed: " + IabUtil.getResponseDesc(response));
@@ -475,62 +945,16 @@ public class IabHelper {
 	}
 
 	/**
-	 * Sets up the billing as necessary.
+	 * Sets up the billing as necessary. Only one connection attempt is made at a time: listeners
+	 * arriving while the service is being bound (or bound again after being lost) are queued and
+	 * notified with the same result. Must be called from the UI thread.
 	 */
 	private void setupInappBillingIfNecessary(final SetupListener listener) {
-		// Already done
-		if (mSetupDone) {
-			listener.onDone(this, new IabResult(BILLING_RESPONSE_RESULT_OK, "Already loaded."));
-			return;
-		}
-
-		final Context context = getApplicationContext();
-		Log.v(TAG, "Starting in-app billing.");
-		mServiceConn = new ServiceConnection() {
+		mConnection.whenReady(getApplicationContext(), new BillingConnection.ReadyListener() {
 			@Override
-			public void onServiceDisconnected(ComponentName name) {
-				Log.v(TAG, "Billing service disconnected.");
-				mService = null;
+			public void onReady(IabResult result) {
+				listener.onDone(result.isSuccess() ? IabHelper.this : null, result);
 			}
-
-			@Override
-			public void onServiceConnected(ComponentName name, IBinder service) {
-				if (mDisposed) return;
-				Log.v(TAG, "Billing service connected.");
-				mService = IInAppBillingService.Stub.asInterface(service);
-				String packageName = context.getPackageName();
-				try {
-					Log.v(TAG, "Checking for in-app billing 3 support.");
-
-					// check for in-app billing v3 support
-					int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-					if (response != BILLING_RESPONSE_RESULT_OK) {
-						listener.onDone(null, new IabResult(response, "Error checking for billing v3 support."));
-						return;
-					}
-
-					Log.v(TAG, "In-app billing version 3 supported for " + packageName);
-					mSetupDone = true;
-				}
-				catch (RemoteException e) {
-					listener.onDone(null, new IabResult(IABHELPER_REMOTE_EXCEPTION, "RemoteException while setting up in-app billing."));
-					e.printStackTrace();
-					return;
-				}
-
-				listener.onDone(IabHelper.this, new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
-			}
-		};
-
-		Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-		serviceIntent.setPackage("com.android.vending");
-		if (!context.getPackageManager().queryIntentServices(serviceIntent, 0).isEmpty()) {
-			// service available to handle that Intent
-			context.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-		}
-		else {
-			// no service available to handle that Intent
-			listener.onDone(this, new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, "Billing service unavailable on device."));
-		}
+		});
 	}
 }
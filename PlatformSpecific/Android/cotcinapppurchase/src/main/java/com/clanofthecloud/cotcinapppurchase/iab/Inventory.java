@@ -0,0 +1,104 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Purchases owned by the user and not consumed yet, indexed by SKU, as far as known. Purchases are
+ * recorded as they complete and removed as they get consumed; the whole list is only loaded from
+ * the billing service when it reports an item as already owned, or when explicitly refreshed.
+ * A purchase missing from here may therefore still be owned.
+ */
+class Inventory {
+	private final HashMap<String, Purchase> mPurchases = new HashMap<String, Purchase>();
+	// Incremented by each change, so that loads know what happened while they were paging
+	private long mGeneration;
+	// Generation of the last put or remove of each SKU, newer than the last fill
+	private final HashMap<String, Long> mChanges = new HashMap<String, Long>();
+	// Value of startLoad() for the last fill
+	private long mFilledAt;
+
+	/**
+	 * To be called before querying the billing service for the purchases.
+	 * @return Value to pass to fill with the result.
+	 */
+	synchronized long startLoad() {
+		return mGeneration;
+	}
+
+	/**
+	 * Replaces the content of the inventory by what has been returned by the billing service.
+	 * Products put or removed since the load started keep their current state, as the billing
+	 * service may have answered before the change. Ignored if a load started later has been
+	 * filled already.
+	 * @param purchases All purchases owned by the user.
+	 * @param loadStarted Value of startLoad() before querying the purchases.
+	 */
+	synchronized void fill(List<Purchase> purchases, long loadStarted) {
+		if (loadStarted < mFilledAt) { return; }
+		mFilledAt = loadStarted;
+		// Older changes are known to the billing service, no load in progress can undo them anymore
+		for (Iterator<Long> it = mChanges.values().iterator(); it.hasNext(); ) {
+			if (it.next() <= loadStarted) {
+				it.remove();
+			}
+		}
+		HashMap<String, Purchase> changed = new HashMap<String, Purchase>();
+		for (String sku : mChanges.keySet()) {
+			Purchase current = mPurchases.get(sku);
+			if (current != null) {
+				changed.put(sku, current);
+			}
+		}
+		mPurchases.clear();
+		for (Purchase p : purchases) {
+			if (!mChanges.containsKey(p.getSku())) {
+				mPurchases.put(p.getSku(), p);
+			}
+		}
+		mPurchases.putAll(changed);
+	}
+
+	/**
+	 * @param sku SKU of the product.
+	 * @return The purchase of this product owned by the user, if any.
+	 */
+	synchronized Purchase get(String sku) {
+		return mPurchases.get(sku);
+	}
+
+	/**
+	 * Records a purchase that has just been made.
+	 */
+	synchronized void put(Purchase purchase) {
+		mPurchases.put(purchase.getSku(), purchase);
+		mChanges.put(purchase.getSku(), ++mGeneration);
+	}
+
+	/**
+	 * Records that a product is not owned anymore (i.e. it has been consumed).
+	 */
+	synchronized void remove(String sku) {
+		mPurchases.remove(sku);
+		mChanges.put(sku, ++mGeneration);
+	}
+
+	/**
+	 * @return A copy of all purchases currently owned.
+	 */
+	synchronized List<Purchase> getAll() {
+		return new ArrayList<Purchase>(mPurchases.values());
+	}
+
+	/**
+	 * Forgets everything, e.g. because another user may sign in. Filled again by the next reload.
+	 */
+	synchronized void invalidate() {
+		mPurchases.clear();
+		mChanges.clear();
+		// Loads in progress may be for the previous user
+		mFilledAt = ++mGeneration;
+	}
+}
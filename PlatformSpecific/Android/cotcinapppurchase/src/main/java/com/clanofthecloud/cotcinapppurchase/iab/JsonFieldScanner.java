@@ -0,0 +1,206 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import org.json.JSONException;
+
+/**
+ * Extracts a few top-level members of a JSON object from its text, without building a JSONObject.
+ * The billing service returns purchases and product details as JSON strings of which we only need
+ * a handful of fields; the rest is skipped over without being decoded.
+ */
+final class JsonFieldScanner {
+	private final String mJson;
+	private int mPos;
+
+	private JsonFieldScanner(String json) {
+		mJson = json;
+	}
+
+	/**
+	 * Scans a JSON object for the given members. Scanning stops as soon as all of them are found.
+	 * @param json Text of a JSON object.
+	 * @param names Names of the top-level members to extract.
+	 * @return The values, in the same order as names. Strings are unescaped, numbers and booleans
+	 * are returned as written. Missing members, nulls, objects and arrays are returned as null.
+	 * @throws JSONException if the text is not a JSON object.
+	 */
+	static String[] scan(String json, String... names) throws JSONException {
+		return new JsonFieldScanner(json).scanObject(names);
+	}
+
+	/**
+	 * @param value Value returned by scan.
+	 * @return The value as a long, 0 if missing or not a number (like JSONObject.optLong).
+	 */
+	static long toLong(String value) {
+		if (value == null) { return 0; }
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(value);
+			} catch (NumberFormatException e2) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * @param value Value returned by scan.
+	 * @return The value, or an empty string if missing (like JSONObject.optString).
+	 */
+	static String toString(String value) {
+		return value != null ? value : "";
+	}
+
+	private String[] scanObject(String[] names) throws JSONException {
+		String[] values = new String[names.length];
+		int remaining = names.length;
+		skipWhitespace();
+		expect('{');
+		skipWhitespace();
+		if (peek() == '}') { return values; }
+		while (true) {
+			skipWhitespace();
+			expect('"');
+			String name = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			int index = indexOf(names, name);
+			if (index >= 0 && values[index] == null) {
+				values[index] = readValue();
+				if (--remaining == 0) { return values; }
+			} else {
+				skipValue();
+			}
+			skipWhitespace();
+			char c = next();
+			if (c == '}') { return values; }
+			if (c != ',') { throw syntaxError("Expected ',' or '}'"); }
+		}
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) { return i; }
+		}
+		return -1;
+	}
+
+	private String readValue() throws JSONException {
+		char c = peek();
+		if (c == '"') {
+			mPos++;
+			return readString();
+		}
+		if (c == '{' || c == '[') {
+			skipValue();
+			return null;
+		}
+		int start = mPos;
+		skipLiteral();
+		String literal = mJson.substring(start, mPos);
+		return literal.equals("null") ? null : literal;
+	}
+
+	private void skipValue() throws JSONException {
+		char c = peek();
+		if (c == '"') {
+			mPos++;
+			skipString();
+		} else if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = next();
+				if (c == '"') { skipString(); }
+				else if (c == '{' || c == '[') { depth++; }
+				else if (c == '}' || c == ']') { depth--; }
+			} while (depth > 0);
+		} else {
+			skipLiteral();
+		}
+	}
+
+	/**
+	 * Reads a string whose opening quote has been consumed. Substrings without escapes, the vast
+	 * majority, are returned without copying characters one by one.
+	 */
+	private String readString() throws JSONException {
+		int start = mPos;
+		StringBuilder unescaped = null;
+		while (true) {
+			char c = next();
+			if (c == '"') {
+				if (unescaped == null) { return mJson.substring(start, mPos - 1); }
+				return unescaped.append(mJson, start, mPos - 1).toString();
+			}
+			if (c != '\\') { continue; }
+			if (unescaped == null) { unescaped = new StringBuilder(); }
+			unescaped.append(mJson, start, mPos - 1);
+			c = next();
+			switch (c) {
+				case 'b': unescaped.append('\b'); break;
+				case 't': unescaped.append('\t'); break;
+				case 'n': unescaped.append('\n'); break;
+				case 'f': unescaped.append('\f'); break;
+				case 'r': unescaped.append('\r'); break;
+				case 'u':
+					if (mPos + 4 > mJson.length()) { throw syntaxError("Unterminated escape sequence"); }
+					try {
+						unescaped.append((char) Integer.parseInt(mJson.substring(mPos, mPos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw syntaxError("Invalid escape sequence");
+					}
+					mPos += 4;
+					break;
+				default:
+					unescaped.append(c);
+					break;
+			}
+			start = mPos;
+		}
+	}
+
+	private void skipString() throws JSONException {
+		while (true) {
+			char c = next();
+			if (c == '"') { return; }
+			if (c == '\\') { next(); }
+		}
+	}
+
+	private void skipLiteral() throws JSONException {
+		int start = mPos;
+		while (mPos < mJson.length()) {
+			char c = mJson.charAt(mPos);
+			if (c == ',' || c == '}' || c == ']' || c <= ' ') { break; }
+			mPos++;
+		}
+		if (mPos == start) { throw syntaxError("Expected a value"); }
+	}
+
+	private void skipWhitespace() {
+		while (mPos < mJson.length() && mJson.charAt(mPos) <= ' ') {
+			mPos++;
+		}
+	}
+
+	private void expect(char expected) throws JSONException {
+		if (next() != expected) { throw syntaxError("Expected '" + expected + "'"); }
+	}
+
+	private char peek() throws JSONException {
+		if (mPos >= mJson.length()) { throw syntaxError("Unexpected end of input"); }
+		return mJson.charAt(mPos);
+	}
+
+	private char next() throws JSONException {
+		char c = peek();
+		mPos++;
+		return c;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " at character " + mPos);
+	}
+}
@@ -0,0 +1,220 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+/**
+ * Writes compact JSON text straight into a buffer, without building a JSONObject tree first.
+ * Used for the messages sent to Unity, which can be large (product catalogs) and are produced
+ * while the game is rendering. The output parses exactly like JSONObject.toString() would.
+ * Writers are pooled per thread: obtain one, write a single top-level value, then call
+ * {@link #toStringAndRelease()}. The writer must not be used afterwards. If the message can not be
+ * completed, {@link #release()} must be called instead, typically from a finally block, or the
+ * thread would have to allocate a new writer for every message from then on.
+ */
+public final class JsonWriter {
+	// Buffers that grew bigger than this are shrunk before going back to the pool
+	private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<JsonWriter> sPool = new ThreadLocal<JsonWriter>() {
+		@Override
+		protected JsonWriter initialValue() {
+			return new JsonWriter();
+		}
+	};
+
+	private final StringBuilder mOut = new StringBuilder(256);
+	// For each nesting level, whether a value has already been written (next one needs a comma)
+	private boolean[] mHasValue = new boolean[8];
+	private int mDepth;
+	// Set after name(), the value follows the colon without a comma
+	private boolean mAfterName;
+	private boolean mInUse;
+
+	private JsonWriter() {}
+
+	/**
+	 * @return A writer ready to be used on this thread. If the pooled one is already in use
+	 * (building a message while building another one), a new writer is returned.
+	 */
+	public static JsonWriter obtain() {
+		JsonWriter writer = sPool.get();
+		if (writer.mInUse) {
+			writer = new JsonWriter();
+		}
+		writer.mInUse = true;
+		return writer;
+	}
+
+	public JsonWriter beginObject() {
+		return open('{');
+	}
+
+	public JsonWriter endObject() {
+		return close('}');
+	}
+
+	public JsonWriter beginArray() {
+		return open('[');
+	}
+
+	public JsonWriter endArray() {
+		return close(']');
+	}
+
+	/**
+	 * Writes the name of the next member of the current object. Must be followed by a value.
+	 */
+	public JsonWriter name(String name) {
+		beforeValue();
+		quote(name);
+		mOut.append(':');
+		mAfterName = true;
+		return this;
+	}
+
+	/**
+	 * @param value String to write, or null to write a JSON null.
+	 */
+	public JsonWriter value(String value) {
+		if (value == null) { return nullValue(); }
+		beforeValue();
+		quote(value);
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		beforeValue();
+		mOut.append(value);
+		return this;
+	}
+
+	/**
+	 * Writes a number the way org.json does: integral values have no decimal part.
+	 * @throws IllegalArgumentException if the value is NaN or infinite, not representable in JSON.
+	 */
+	public JsonWriter value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException("Numbers must be finite in JSON: " + value);
+		}
+		beforeValue();
+		if (value == (long) value) {
+			mOut.append((long) value);
+		} else {
+			mOut.append(value);
+		}
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		beforeValue();
+		mOut.append(value);
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		beforeValue();
+		mOut.append("null");
+		return this;
+	}
+
+	/**
+	 * Writes a value that is already valid JSON text as is (e.g. the result of another writer).
+	 */
+	public JsonWriter rawValue(String json) {
+		beforeValue();
+		mOut.append(json);
+		return this;
+	}
+
+	/**
+	 * @return The JSON text written so far. The writer goes back to the pool and must not be used
+	 * anymore.
+	 */
+	public String toStringAndRelease() {
+		String result = mOut.toString();
+		release();
+		return result;
+	}
+
+	/**
+	 * Abandons what has been written; the writer goes back to the pool and must not be used
+	 * anymore. Does nothing if it has been released already, so that it can be called from a
+	 * finally block after toStringAndRelease.
+	 */
+	public void release() {
+		if (!mInUse) { return; }
+		mOut.setLength(0);
+		if (mOut.capacity() > MAX_POOLED_CAPACITY) {
+			mOut.trimToSize();
+		}
+		mDepth = 0;
+		mAfterName = false;
+		mInUse = false;
+	}
+
+	@Override
+	public String toString() {
+		return mOut.toString();
+	}
+
+	private JsonWriter open(char bracket) {
+		beforeValue();
+		mOut.append(bracket);
+		if (mDepth == mHasValue.length) {
+			boolean[] grown = new boolean[mDepth * 2];
+			System.arraycopy(mHasValue, 0, grown, 0, mDepth);
+			mHasValue = grown;
+		}
+		mHasValue[mDepth++] = false;
+		return this;
+	}
+
+	private JsonWriter close(char bracket) {
+		if (mDepth == 0) {
+			throw new IllegalStateException("Nothing to close with " + bracket);
+		}
+		mDepth -= 1;
+		mOut.append(bracket);
+		return this;
+	}
+
+	private void beforeValue() {
+		if (mAfterName) {
+			mAfterName = false;
+			return;
+		}
+		if (mDepth > 0) {
+			if (mHasValue[mDepth - 1]) {
+				mOut.append(',');
+			}
+			mHasValue[mDepth - 1] = true;
+		}
+	}
+
+	/**
+	 * Appends a quoted string, copying runs of characters that need no escaping at once.
+	 */
+	private void quote(String s) {
+		StringBuilder out = mOut;
+		out.append('"');
+		int runStart = 0, length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') { continue; }
+			out.append(s, runStart, i);
+			runStart = i + 1;
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				case '\b': out.append("\\b"); break;
+				case '\f': out.append("\\f"); break;
+				default:
+					out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+					break;
+			}
+		}
+		out.append(s, runStart, length);
+		out.append('"');
+	}
+}
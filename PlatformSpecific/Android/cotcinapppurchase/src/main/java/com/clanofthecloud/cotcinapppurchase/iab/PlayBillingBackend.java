@@ -0,0 +1,111 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.util.HashMap;
+
+/**
+ * Billing backend talking to the Google Play in-app billing service through Binder.
+ */
+public class PlayBillingBackend implements BillingBackend {
+	private static final String TAG = "PlayBillingBackend";
+	private static final String SERVICE_ACTION = "com.android.vending.billing.InAppBillingService.BIND";
+	private static final String SERVICE_PACKAGE = "com.android.vending";
+
+	// Android service connections backing the connections handed to bind
+	private final HashMap<Connection, ServiceConnection> mServiceConns = new HashMap<Connection, ServiceConnection>();
+
+	@Override
+	public boolean isAvailable(Context context) {
+		return !context.getPackageManager().queryIntentServices(serviceIntent(), 0).isEmpty();
+	}
+
+	@Override
+	public boolean bind(Context context, final Connection connection) {
+		ServiceConnection serviceConn = new ServiceConnection() {
+			@Override
+			public void onServiceConnected(ComponentName name, IBinder service) {
+				connection.onConnected(new PlayService(IInAppBillingService.Stub.asInterface(service)));
+			}
+
+			@Override
+			public void onServiceDisconnected(ComponentName name) {
+				connection.onDisconnected();
+			}
+		};
+		if (!context.bindService(serviceIntent(), serviceConn, Context.BIND_AUTO_CREATE)) {
+			// The binding may have been recorded nonetheless and must be released
+			unbindQuietly(context, serviceConn);
+			return false;
+		}
+		mServiceConns.put(connection, serviceConn);
+		return true;
+	}
+
+	@Override
+	public void unbind(Context context, Connection connection) {
+		ServiceConnection serviceConn = mServiceConns.remove(connection);
+		if (serviceConn != null) {
+			unbindQuietly(context, serviceConn);
+		}
+	}
+
+	private static Intent serviceIntent() {
+		Intent serviceIntent = new Intent(SERVICE_ACTION);
+		serviceIntent.setPackage(SERVICE_PACKAGE);
+		return serviceIntent;
+	}
+
+	private static void unbindQuietly(Context context, ServiceConnection serviceConn) {
+		try {
+			context.unbindService(serviceConn);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Billing service was not bound.", e);
+		}
+	}
+
+	/**
+	 * Forwards the calls to the remote service.
+	 */
+	private static class PlayService implements Service {
+		private final IInAppBillingService mService;
+
+		PlayService(IInAppBillingService service) {
+			mService = service;
+		}
+
+		@Override
+		public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+			return mService.isBillingSupported(apiVersion, packageName, type);
+		}
+
+		@Override
+		public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+			return mService.getSkuDetails(apiVersion, packageName, type, skusBundle);
+		}
+
+		@Override
+		public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException {
+			return mService.getBuyIntent(apiVersion, packageName, sku, type, developerPayload);
+		}
+
+		@Override
+		public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+			return mService.getPurchases(apiVersion, packageName, type, continuationToken);
+		}
+
+		@Override
+		public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+			return mService.consumePurchase(apiVersion, packageName, purchaseToken);
+		}
+	}
+}
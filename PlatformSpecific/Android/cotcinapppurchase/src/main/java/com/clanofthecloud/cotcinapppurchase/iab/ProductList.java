@@ -0,0 +1,43 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a product details query: details of the products known to the store, in the order
+ * they were requested, along with the parts of the query that failed if any.
+ */
+public class ProductList {
+	/**
+	 * Failure of a part of a product details query.
+	 */
+	public static class QueryError {
+		private final List<String> mSkus;
+		private final ErrorCode mCode;
+		private final String mDescription;
+
+		QueryError(List<String> skus, ErrorCode code, String description) {
+			mSkus = skus;
+			mCode = code;
+			mDescription = description;
+		}
+
+		/** @return SKUs whose details could not be fetched. */
+		public List<String> getSkus() { return mSkus; }
+		public ErrorCode getCode() { return mCode; }
+		public String getDescription() { return mDescription; }
+	}
+
+	private final List<SkuDetails> mProducts;
+	private final List<QueryError> mErrors;
+
+	public ProductList(List<SkuDetails> products, List<QueryError> errors) {
+		mProducts = products;
+		mErrors = errors != null ? errors : Collections.<QueryError>emptyList();
+	}
+
+	/** @return Details of the products found, without the SKUs unknown to the store. */
+	public List<SkuDetails> getProducts() { return mProducts; }
+	/** @return Parts of the query that failed; empty if everything could be fetched. */
+	public List<QueryError> getErrors() { return mErrors; }
+}
@@ -16,48 +16,55 @@
 package com.clanofthecloud.cotcinapppurchase.iab;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Represents an in-app billing purchase.
+ * Only the fields needed to deliver and consume the purchase are extracted upfront; the others
+ * are extracted from the original JSON the first time they are asked for. The original JSON is
+ * kept as is, since it is what the signature applies to.
  */
 public class Purchase {
+    private static final String[] LAZY_FIELDS = { "orderId", "packageName", "purchaseTime", "purchaseState", "developerPayload" };
     String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
-    String mOrderId;
-    String mPackageName;
     String mSku;
-    long mPurchaseTime;
-    int mPurchaseState;
-    String mDeveloperPayload;
     String mToken;
     String mOriginalJson;
     String mSignature;
+    // Values of LAZY_FIELDS, null until needed
+    private String[] mLazyFields;
 
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
+        String[] fields = JsonFieldScanner.scan(mOriginalJson, "productId", "token", "purchaseToken");
+        mSku = JsonFieldScanner.toString(fields[0]);
+        mToken = fields[1] != null ? fields[1] : JsonFieldScanner.toString(fields[2]);
         mSignature = signature;
     }
 
     public String getItemType() { return mItemType; }
-    public String getOrderId() { return mOrderId; }
-    public String getPackageName() { return mPackageName; }
+    public String getOrderId() { return JsonFieldScanner.toString(lazyField(0)); }
+    public String getPackageName() { return JsonFieldScanner.toString(lazyField(1)); }
     public String getSku() { return mSku; }
-    public long getPurchaseTime() { return mPurchaseTime; }
-    public int getPurchaseState() { return mPurchaseState; }
-    public String getDeveloperPayload() { return mDeveloperPayload; }
+    public long getPurchaseTime() { return JsonFieldScanner.toLong(lazyField(2)); }
+    public int getPurchaseState() { return (int) JsonFieldScanner.toLong(lazyField(3)); }
+    public String getDeveloperPayload() { return JsonFieldScanner.toString(lazyField(4)); }
     public String getToken() { return mToken; }
     public String getOriginalJson() { return mOriginalJson; }
     public String getSignature() { return mSignature; }
 
+    private synchronized String lazyField(int index) {
+        if (mLazyFields == null) {
+            try {
+                mLazyFields = JsonFieldScanner.scan(mOriginalJson, LAZY_FIELDS);
+            } catch (JSONException e) {
+                // Already scanned successfully once, should not happen
+                mLazyFields = new String[LAZY_FIELDS.length];
+            }
+        }
+        return mLazyFields[index];
+    }
+
     @Override
     public String toString() { return "PurchaseInfo(type:" + mItemType + "):" + mOriginalJson; }
 }
@@ -0,0 +1,190 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the signature of purchases on the device, so that forged receipts (typically coming from
+ * modded clients) are dropped before being sent to the game and to our servers. This is only a
+ * first filter: receipts must still be validated by the server.
+ * Disabled until a public key is set. The key is parsed once, and Signature instances are reused
+ * per thread. Batches are verified in parallel.
+ */
+public class ReceiptVerifier {
+	private static final String TAG = "ReceiptVerifier";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Below this size, a batch is not worth dispatching to other threads
+	static final int MIN_PARALLEL_BATCH = 8;
+	private static final int HELPER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	private static final ThreadLocal<Signature> sSignature = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			try {
+				return Signature.getInstance(SIGNATURE_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	// Decoded signatures (256 bytes for the 2048-bit keys used by Google Play)
+	private static final ThreadLocal<byte[]> sSignatureBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[512];
+		}
+	};
+
+	private volatile PublicKey mPublicKey;
+	private ThreadPoolExecutor mHelpers;
+
+	/**
+	 * Enables the verification of purchases.
+	 * @param base64PublicKey The license key of the application, as found in the Google Play
+	 *                        console (base64-encoded). Pass null to disable the verification.
+	 * @throws IllegalArgumentException if the key is invalid.
+	 */
+	public void setPublicKey(String base64PublicKey) {
+		mPublicKey = TextUtils.isEmpty(base64PublicKey) ? null : Security.generatePublicKey(base64PublicKey);
+	}
+
+	/**
+	 * @return whether purchases are verified at all.
+	 */
+	public boolean isEnabled() {
+		return mPublicKey != null;
+	}
+
+	/**
+	 * Can be called from any thread.
+	 * @param purchase Purchase to verify.
+	 * @return whether the purchase has been signed by Google Play. Always true if disabled.
+	 */
+	boolean verify(Purchase purchase) {
+		PublicKey key = mPublicKey;
+		return key == null || verify(key, purchase);
+	}
+
+	/**
+	 * Verifies a batch of purchases, using several threads if it is big enough. The calling thread
+	 * takes part in the work, so the call completes even if no helper thread is available.
+	 * @param purchases Purchases to verify.
+	 * @return The purchases correctly signed, in the same order. The list itself if disabled.
+	 */
+	List<Purchase> filterVerified(final List<Purchase> purchases) {
+		final PublicKey key = mPublicKey;
+		if (key == null || purchases.isEmpty()) { return purchases; }
+
+		final int count = purchases.size();
+		final boolean[] valid = new boolean[count];
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final AtomicInteger remaining = new AtomicInteger(count);
+		final Object doneLock = new Object();
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while ((i = nextIndex.getAndIncrement()) < count) {
+					valid[i] = verify(key, purchases.get(i));
+					if (remaining.decrementAndGet() == 0) {
+						synchronized (doneLock) {
+							doneLock.notifyAll();
+						}
+					}
+				}
+			}
+		};
+
+		if (count >= MIN_PARALLEL_BATCH) {
+			int helpers = Math.min(HELPER_COUNT, count / MIN_PARALLEL_BATCH);
+			for (int h = 0; h < helpers; h++) {
+				if (!dispatch(worker)) { break; }
+			}
+		}
+		worker.run();
+		// Only the purchases already taken by helpers may still be in progress
+		synchronized (doneLock) {
+			while (remaining.get() > 0) {
+				try {
+					doneLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		List<Purchase> result = new ArrayList<Purchase>(count);
+		for (int i = 0; i < count; i++) {
+			if (valid[i]) {
+				result.add(purchases.get(i));
+			} else {
+				Log.w(TAG, "Dropping purchase with an invalid signature: " + purchases.get(i).getSku());
+			}
+		}
+		return result;
+	}
+
+	private static boolean verify(PublicKey key, Purchase purchase) {
+		String signedData = purchase.getOriginalJson(), signature = purchase.getSignature();
+		if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+			Log.e(TAG, "Purchase verification failed: missing data.");
+			return false;
+		}
+		try {
+			byte[] decoded = sSignatureBuffer.get();
+			if (decoded.length < Base64.maxDecodedLength(signature.length())) {
+				decoded = new byte[Base64.maxDecodedLength(signature.length())];
+				sSignatureBuffer.set(decoded);
+			}
+			int decodedLength = Base64.decode(signature, decoded, 0);
+			Signature sig = sSignature.get();
+			sig.initVerify(key);
+			sig.update(signedData.getBytes(UTF8));
+			return sig.verify(decoded, 0, decodedLength);
+		} catch (GeneralSecurityException e) {
+			Log.e(TAG, "Signature verification failed.", e);
+		} catch (Base64DecoderException e) {
+			Log.e(TAG, "Base64 decoding of the signature failed.");
+		}
+		return false;
+	}
+
+	private synchronized boolean dispatch(Runnable task) {
+		if (mHelpers == null) {
+			mHelpers = new ThreadPoolExecutor(HELPER_COUNT, HELPER_COUNT, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger mThreadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "CotcVerify-" + mThreadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			mHelpers.allowCoreThreadTimeOut(true);
+		}
+		try {
+			mHelpers.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+}
@@ -16,21 +16,21 @@
 package com.clanofthecloud.cotcinapppurchase.iab;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * Represents an in-app product's listing details.
+ * Only the fields needed to list and sell the product are extracted upfront; the others are
+ * extracted from the original JSON the first time they are asked for.
  */
 public class SkuDetails {
+    private static final String[] LAZY_FIELDS = { "type", "price", "title", "description" };
     String mItemType;
     String mSku;
-    String mType;
-    String mPrice;
 	double mPriceAmount;
 	String mPriceCurrency;
-    String mTitle;
-    String mDescription;
     String mJson;
+    // Values of LAZY_FIELDS, null until needed
+    private String[] mLazyFields;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
@@ -39,23 +39,32 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
-        mSku = o.optString("productId");
-        mType = o.optString("type");
-        mPrice = o.optString("price");
-        mTitle = o.optString("title");
-        mDescription = o.optString("description");
-	    mPriceAmount = o.optLong("price_amount_micros") / 1000000.0;
-	    mPriceCurrency = o.optString("price_currency_code");
+        String[] fields = JsonFieldScanner.scan(mJson, "productId", "price_amount_micros", "price_currency_code");
+        mSku = JsonFieldScanner.toString(fields[0]);
+	    mPriceAmount = JsonFieldScanner.toLong(fields[1]) / 1000000.0;
+	    mPriceCurrency = JsonFieldScanner.toString(fields[2]);
     }
 
     public String getSku() { return mSku; }
-    public String getType() { return mType; }
-    public String getPrice() { return mPrice; }
-    public String getTitle() { return mTitle; }
-    public String getDescription() { return mDescription; }
+    public String getType() { return lazyField(0); }
+    public String getPrice() { return lazyField(1); }
+    public String getTitle() { return lazyField(2); }
+    public String getDescription() { return lazyField(3); }
 	public double getPriceAmount() { return mPriceAmount; }
 	public String getPriceCurrency() { return mPriceCurrency; }
+    public String getOriginalJson() { return mJson; }
+
+    private synchronized String lazyField(int index) {
+        if (mLazyFields == null) {
+            try {
+                mLazyFields = JsonFieldScanner.scan(mJson, LAZY_FIELDS);
+            } catch (JSONException e) {
+                // Already scanned successfully once, should not happen
+                mLazyFields = new String[LAZY_FIELDS.length];
+            }
+        }
+        return JsonFieldScanner.toString(mLazyFields[index]);
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,132 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the product details returned by getSkuDetails in memory, so that listing products or
+ * launching a purchase does not need a round trip to the billing service every time.
+ * Entries expire after a configurable time and the least recently used ones are evicted when the
+ * cache is full. Everything is dropped when the locale or the currency of the store changes,
+ * since prices would not be accurate anymore.
+ */
+public class SkuDetailsCache {
+	private static final String TAG = "SkuDetailsCache";
+	public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+	public static final int DEFAULT_MAX_ENTRIES = 500;
+
+	private static class Entry {
+		final SkuDetails details;
+		final long fetchedAt;
+
+		Entry(SkuDetails details, long fetchedAt) {
+			this.details = details;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > mMaxEntries;
+		}
+	};
+	private final AtomicLong mHits = new AtomicLong(), mMisses = new AtomicLong();
+	private long mTtlMs = DEFAULT_TTL_MS;
+	private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+	private Locale mLocale;
+	private String mCurrency;
+
+	/**
+	 * Changes the caching policy. Entries already present are kept if they satisfy the new policy.
+	 * @param ttlMs Time after which an entry has to be fetched again. Pass 0 to disable the cache.
+	 * @param maxEntries Maximum number of products kept in memory.
+	 */
+	public synchronized void configure(long ttlMs, int maxEntries) {
+		mTtlMs = Math.max(0, ttlMs);
+		mMaxEntries = Math.max(0, maxEntries);
+		// Evict what does not fit anymore, oldest first
+		while (mEntries.size() > mMaxEntries) {
+			mEntries.remove(mEntries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * @param sku SKU to look for.
+	 * @return The cached details or null if they are missing or expired.
+	 */
+	public synchronized SkuDetails get(String sku) {
+		checkLocale();
+		Entry entry = mEntries.get(sku);
+		if (entry != null && SystemClock.elapsedRealtime() - entry.fetchedAt >= mTtlMs) {
+			mEntries.remove(sku);
+			entry = null;
+		}
+		if (entry == null) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		mHits.incrementAndGet();
+		return entry.details;
+	}
+
+	/**
+	 * Checks whether all details are at hand, without counting hits or misses.
+	 * @param skus SKUs to look for.
+	 * @return true if get would return details for all of them.
+	 */
+	public synchronized boolean containsAll(Collection<String> skus) {
+		checkLocale();
+		long now = SystemClock.elapsedRealtime();
+		for (String sku : skus) {
+			Entry entry = mEntries.get(sku);
+			if (entry == null || now - entry.fetchedAt >= mTtlMs) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stores details freshly returned by the billing service.
+	 * @param details Details to store.
+	 */
+	public synchronized void put(SkuDetails details) {
+		if (mTtlMs == 0 || mMaxEntries == 0) { return; }
+		checkLocale();
+		String currency = details.getPriceCurrency();
+		if (mCurrency != null && !mCurrency.equals(currency)) {
+			Log.v(TAG, "Store currency changed from " + mCurrency + " to " + currency + ", invalidating cache.");
+			mEntries.clear();
+		}
+		mCurrency = currency;
+		mEntries.put(details.getSku(), new Entry(details, SystemClock.elapsedRealtime()));
+	}
+
+	/**
+	 * Drops all cached entries. Statistics are kept.
+	 */
+	public synchronized void invalidate() {
+		mEntries.clear();
+		mCurrency = null;
+	}
+
+	public long getHitCount() { return mHits.get(); }
+	public long getMissCount() { return mMisses.get(); }
+	public synchronized int size() { return mEntries.size(); }
+
+	private void checkLocale() {
+		Locale current = Locale.getDefault();
+		if (mLocale != null && !mLocale.equals(current)) {
+			Log.v(TAG, "Locale changed from " + mLocale + " to " + current + ", invalidating cache.");
+			invalidate();
+		}
+		mLocale = current;
+	}
+}
@@ -0,0 +1,200 @@
+package com.clanofthecloud.cotcinapppurchase.iab;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Last product details returned by getSkuDetails, persisted in the files dir of the application so
+ * that prices can be shown right after a cold start, before the billing service is even bound.
+ * Details read from here may be outdated: they are meant to be shown while fresh ones are being
+ * fetched (stale-while-revalidate), never to replace the SkuDetailsCache.
+ * The file holds, for a given locale, the SKU, fetch time and original JSON of each product.
+ * Entries older than MAX_AGE_MS, or saved for another locale, are ignored.
+ */
+public class SkuDetailsSnapshot {
+	private static final String TAG = "SkuDetailsSnapshot";
+	public static final String FILE_NAME = "cotc_sku_details.snapshot";
+	// Bumped whenever the format changes; files with another version are ignored
+	private static final int FORMAT_VERSION = 1;
+	public static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+	private static class Entry {
+		final SkuDetails details;
+		final long fetchedAt;
+
+		Entry(SkuDetails details, long fetchedAt) {
+			this.details = details;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	// Held while writing, saves may be requested from several billing workers
+	private final Object mSaveLock = new Object();
+	private File mFile;
+	private boolean mEnabled, mLoaded, mDirty;
+	private Locale mLocale;
+
+	/**
+	 * Starts recording the details passed to put, before the snapshot is loaded.
+	 */
+	synchronized void enable() {
+		mEnabled = true;
+	}
+
+	/**
+	 * Reads the snapshot from disk. Blocking, to be run on a background thread. Until it is done,
+	 * the snapshot is considered empty.
+	 * @param filesDir Directory of the application files, from Context.getFilesDir.
+	 */
+	void load(File filesDir) {
+		File file = new File(filesDir, FILE_NAME);
+		HashMap<String, Entry> entries = new HashMap<String, Entry>();
+		Locale locale = Locale.getDefault();
+		try {
+			readFile(file, locale, entries);
+		} catch (FileNotFoundException e) {
+			Log.v(TAG, "No product details snapshot yet.");
+		} catch (IOException e) {
+			Log.w(TAG, "Ignoring unreadable product details snapshot", e);
+			entries.clear();
+		} catch (JSONException e) {
+			Log.w(TAG, "Ignoring corrupt product details snapshot", e);
+			entries.clear();
+		}
+		synchronized (this) {
+			mFile = file;
+			mLocale = locale;
+			// Details received meanwhile are more recent
+			entries.putAll(mEntries);
+			mEntries.clear();
+			mEntries.putAll(entries);
+			mLoaded = true;
+		}
+		Log.v(TAG, "Loaded " + entries.size() + " product details from snapshot.");
+	}
+
+	/**
+	 * @param skus SKUs to look for.
+	 * @return Details found in the snapshot for the current locale, in the order of the SKUs (the
+	 * unknown ones are left out), or null if none was found.
+	 */
+	public synchronized List<SkuDetails> get(Collection<String> skus) {
+		if (!mLoaded || !Locale.getDefault().equals(mLocale)) { return null; }
+		long now = System.currentTimeMillis();
+		List<SkuDetails> found = new ArrayList<SkuDetails>();
+		for (String sku : skus) {
+			Entry entry = mEntries.get(sku);
+			if (entry != null && now - entry.fetchedAt < MAX_AGE_MS) {
+				found.add(entry.details);
+			}
+		}
+		return found.isEmpty() ? null : found;
+	}
+
+	/**
+	 * Records details freshly returned by the billing service. They are written by the next save.
+	 */
+	synchronized void put(SkuDetails details) {
+		if (!mEnabled) { return; }
+		Locale current = Locale.getDefault();
+		if (!current.equals(mLocale)) {
+			// Prices in the other locale are of no use anymore
+			mEntries.clear();
+			mLocale = current;
+		}
+		Entry previous = mEntries.put(details.getSku(), new Entry(details, System.currentTimeMillis()));
+		// Refreshing the timestamp alone is not worth a write, unless the entry is getting old
+		if (previous == null || !previous.details.getOriginalJson().equals(details.getOriginalJson())
+			|| System.currentTimeMillis() - previous.fetchedAt > MAX_AGE_MS / 2) {
+			mDirty = true;
+		}
+	}
+
+	/**
+	 * Writes the snapshot to disk if it has changed since it was loaded or saved. Blocking, to be
+	 * run on a background thread. Does nothing until the snapshot has been loaded.
+	 */
+	void save() {
+		synchronized (mSaveLock) {
+			saveLocked();
+		}
+	}
+
+	private void saveLocked() {
+		File file;
+		Locale locale;
+		List<Entry> entries;
+		synchronized (this) {
+			if (!mLoaded || !mDirty) { return; }
+			mDirty = false;
+			file = mFile;
+			locale = mLocale;
+			entries = new ArrayList<Entry>(mEntries.values());
+		}
+		// Written aside then renamed, so that a crash in the middle leaves the previous snapshot
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(locale.toString());
+				out.writeInt(entries.size());
+				for (Entry e : entries) {
+					out.writeUTF(e.details.getSku());
+					out.writeLong(e.fetchedAt);
+					out.writeUTF(e.details.getOriginalJson());
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Can not rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to save product details snapshot", e);
+			tmp.delete();
+			synchronized (this) {
+				mDirty = true;
+			}
+		}
+	}
+
+	private static void readFile(File file, Locale locale, Map<String, Entry> entries) throws IOException, JSONException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FORMAT_VERSION) {
+				Log.v(TAG, "Ignoring product details snapshot from another version.");
+				return;
+			}
+			if (!in.readUTF().equals(locale.toString())) {
+				Log.v(TAG, "Ignoring product details snapshot saved for another locale.");
+				return;
+			}
+			for (int count = in.readInt(); count > 0; count--) {
+				String sku = in.readUTF();
+				long fetchedAt = in.readLong();
+				entries.put(sku, new Entry(new SkuDetails(IabHelper.ITEM_TYPE_INAPP, in.readUTF()), fetchedAt));
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -1,27 +1,26 @@
 package com.clanofthecloud.cotcpushnotifications;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.unity3d.player.UnityPlayer;
 
+import org.json.JSONObject;
+
 /**
  * Main class allowing to start/stop/etc. the plugin
  *
  * Call startup() when you want to enable receiving notifications (on the onCreate of your main activity).
  */
 public class Controller {
-	static final String REGISTRATION_COMPLETE = "registrationComplete";
 	private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
 	private static final String TAG = "CotcPushController";
-	private BroadcastReceiver mRegistrationBroadcastReceiver;
+	// Message sent to Unity once a registration attempt is over
+	private static final String CB_REGISTRATIONDONE = "OnRegistrationDone";
+	private static volatile String gameObjectName;
 	private Activity activity;
 	private static Controller instance;
 
@@ -31,51 +30,70 @@ public class Controller {
 		}
 	}
 
+	/**
+	 * Same as startup(), and sends the outcome of the registrations to a game object.
+	 * @param gameObjectName Name of the game object to send the OnRegistrationDone message to. The
+	 *                       message is a JSON object with either a `token` or an `error` key.
+	 */
+	public static void startup(String gameObjectName) {
+		Controller.gameObjectName = gameObjectName;
+		startup();
+	}
+
 	public static void registerForNotifications() {
 		instance.startRegistration();
 	}
 
+	/** Kept for compatibility, there is nothing to do anymore. */
 	public static void onPause() {
-		instance.pause();
 	}
 
+	/** Kept for compatibility, there is nothing to do anymore. */
 	public static void onResume() {
-		instance.resume();
 	}
 
+	/**
+	 * @return The last token obtained, possibly by a previous run of the app, or null if none yet.
+	 * Prefer waiting for the OnRegistrationDone message (see startup(gameObjectName)) over polling
+	 * this.
+	 */
 	public static String getToken() {
 		return instance.registrationToken();
 	}
 
-	public Controller() {
-		activity = UnityPlayer.currentActivity;
+	/**
+	 * Called by the RegistrationIntentService when a registration is over.
+	 * @param token Registration token, null if the registration failed.
+	 * @param error Description of the failure, null if it succeeded.
+	 */
+	static void registrationDone(String token, String error) {
+		String target = gameObjectName;
+		if (target == null) {
+			// The game is not listening (or is not running, in case of a token refresh)
+			return;
+		}
+		String message = token != null ?
+			"{\"token\":" + JSONObject.quote(token) + "}" :
+			"{\"error\":" + JSONObject.quote(error) + "}";
+		UnityPlayer.UnitySendMessage(target, CB_REGISTRATIONDONE, message);
 	}
 
-	private void pause() {
-		LocalBroadcastManager.getInstance(activity).unregisterReceiver(mRegistrationBroadcastReceiver);
+	public Controller() {
+		activity = UnityPlayer.currentActivity;
 	}
 
 	private String registrationToken() {
-		return RegistrationIntentService.getRegistrationToken();
-	}
-
-	private void resume() {
-		LocalBroadcastManager.getInstance(activity).registerReceiver(mRegistrationBroadcastReceiver,
-			new IntentFilter(REGISTRATION_COMPLETE));
+		return TokenStore.get(activity).getToken();
 	}
 
 	public void startRegistration() {
 		Log.d(TAG, "Registering for notifications (Android)");
-		mRegistrationBroadcastReceiver = new BroadcastReceiver() {
-			@Override
-			public void onReceive(Context context, Intent intent) {
-				Log.d(TAG, "Registration broadcast intent received");
-			}
-		};
 		if (checkPlayServices()) {
 			// Start IntentService to register this application with GCM.
 			Intent intent = new Intent(activity, RegistrationIntentService.class);
 			activity.startService(intent);
+		} else {
+			registrationDone(null, "Google Play Services unavailable");
 		}
 	}
 
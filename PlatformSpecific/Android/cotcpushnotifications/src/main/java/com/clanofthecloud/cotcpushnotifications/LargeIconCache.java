@@ -0,0 +1,70 @@
+package com.clanofthecloud.cotcpushnotifications;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Keeps the large icon of the notifications decoded, at the size it is shown, so that a push does
+ * not have to decode the full resolution image again.
+ * Only the last icon is kept; there is a single one configured per application anyway.
+ */
+class LargeIconCache {
+	private static final String TAG = "CotcLargeIconCache";
+	private static int cachedResId = NotificationConfig.NO_ICON;
+	private static Bitmap cachedIcon;
+
+	/**
+	 * @param res Resources of the application (those of the service will do, the game does not
+	 *            need to be running).
+	 * @param resId Drawable resource of the icon.
+	 * @return The icon, downsampled to the notification large icon size, or null if it could not
+	 * be decoded (not retried).
+	 */
+	static synchronized Bitmap get(Resources res, int resId) {
+		if (resId != cachedResId) {
+			cachedIcon = decode(res, resId);
+			cachedResId = resId;
+		}
+		return cachedIcon;
+	}
+
+	private static Bitmap decode(Resources res, int resId) {
+		try {
+			int width = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+			int height = res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+
+			// Read the size first, so that only the needed resolution is decoded
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeResource(res, resId, options);
+			int sampleSize = 1;
+			while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+				sampleSize *= 2;
+			}
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = sampleSize;
+			Bitmap bitmap = BitmapFactory.decodeResource(res, resId, options);
+			if (bitmap == null) {
+				Log.w(TAG, "Failed to decode the notification large icon");
+				return null;
+			}
+
+			// Sampling only divides by powers of two, finish the job
+			if (bitmap.getWidth() > width || bitmap.getHeight() > height) {
+				float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+				Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+					Math.max(1, Math.round(bitmap.getWidth() * scale)), Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+				if (scaled != bitmap) {
+					bitmap.recycle();
+				}
+				bitmap = scaled;
+			}
+			return bitmap;
+		} catch (Resources.NotFoundException e) {
+			Log.w(TAG, "Notification large icon not found", e);
+			return null;
+		}
+	}
+}
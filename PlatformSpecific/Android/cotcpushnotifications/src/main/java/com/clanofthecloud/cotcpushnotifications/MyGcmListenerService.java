@@ -19,20 +19,10 @@ package com.clanofthecloud.cotcpushnotifications;
 import android.app.Activity;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.app.NotificationChannel;
 import android.app.Notification;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-
-import android.graphics.Bitmap; 
-import android.graphics.BitmapFactory; 
-
-import android.media.RingtoneManager;
-
-import android.net.Uri;
 
 import android.os.Build;
 import android.os.Bundle;
@@ -79,23 +69,9 @@ public class MyGcmListenerService extends GcmListenerService {
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0 /* Request code */, intent,
                 PendingIntent.FLAG_ONE_SHOT);
 
-        ApplicationInfo ai = null;
         try {
-            ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-            int notificationIcon = ai.metaData.getInt("cotc.GcmNotificationIcon", -1);
-            if (notificationIcon == -1) {
-                Log.e(TAG, "!!!!!!!!! cotc.GcmNotificationIcon not configured in manifest, push notifications won't work !!!!!!!!!");
-                return;
-            }
-            int notificationLargeIcon = ai.metaData.getInt("cotc.GcmNotificationLargeIcon", -1);
-            if (notificationLargeIcon == -1) {
-                Log.e(TAG, "There is no large icon for push notifs, will only use default icon");
-                return;
-            }
-
-            String pushNotifName = ai.metaData.getString("cotc.GcmNotificationTitle");
-            if (pushNotifName == null) {
-                Log.e(TAG, "!!!!!!!!! cotc.GcmNotificationTitle not configured in manifest, push notifications won't work !!!!!!!!!");
+            NotificationConfig config = NotificationConfig.get(this);
+            if (config == null) {
                 return;
             }
 
@@ -104,27 +80,19 @@ public class MyGcmListenerService extends GcmListenerService {
             NotificationCompat.Builder notificationBuilder;
 
             if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-            {
-                int importance = NotificationManager.IMPORTANCE_HIGH;
-                NotificationChannel channel = new NotificationChannel("CotC Channel", "CotC Channel", importance);
-                channel.setDescription("CotC Channel");
-                notifManager.createNotificationChannel(channel);
-                notificationBuilder = new NotificationCompat.Builder(this, "CotC Channel");
-            }
+                notificationBuilder = new NotificationCompat.Builder(this, NotificationConfig.CHANNEL_ID);
             else
                 notificationBuilder = new NotificationCompat.Builder(this);
 
-            Uri defaultSoundUri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-
-            notificationBuilder.setSmallIcon(notificationIcon)
-                .setContentTitle(pushNotifName)
+            notificationBuilder.setSmallIcon(config.smallIcon)
+                .setContentTitle(config.title)
                 .setContentText(message)
                 .setAutoCancel(true)
-                .setSound(defaultSoundUri)
+                .setSound(config.sound)
                 .setContentIntent(pendingIntent)
                 .setPriority(Notification.PRIORITY_HIGH);
-            if(notificationLargeIcon != -1)
-                notificationBuilder.setLargeIcon(BitmapFactory.decodeResource(currentAct.getResources(), notificationLargeIcon));
+            if(config.largeIcon != NotificationConfig.NO_ICON)
+                notificationBuilder.setLargeIcon(LargeIconCache.get(getResources(), config.largeIcon));
 
             notifManager.notify(0 /* ID of notification */, notificationBuilder.build());
         } catch (Exception e) {
@@ -34,6 +34,8 @@ public class MyInstanceIDListenerService extends InstanceIDListenerService {
     public void onTokenRefresh() {
         // Fetch updated Instance ID token and notify our app's server of any changes (if applicable).
         Intent intent = new Intent(this, RegistrationIntentService.class);
+        // The stored token is no longer valid
+        intent.putExtra(RegistrationIntentService.EXTRA_FORCE_REFRESH, true);
         startService(intent);
     }
     // [END refresh_token]
@@ -0,0 +1,84 @@
+package com.clanofthecloud.cotcpushnotifications;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Appearance of the notifications, as configured in the meta-data of the manifest. Read and
+ * validated once per process (along with the registration of the notification channel), as it
+ * can not change while running.
+ */
+class NotificationConfig {
+	private static final String TAG = "CotcNotificationConfig";
+	static final String CHANNEL_ID = "CotC Channel";
+	static final int NO_ICON = -1;
+	private static NotificationConfig instance;
+	private static boolean loaded;
+
+	final int smallIcon;
+	/** NO_ICON if not configured. */
+	final int largeIcon;
+	final String title;
+	final Uri sound;
+
+	private NotificationConfig(int smallIcon, int largeIcon, String title, Uri sound) {
+		this.smallIcon = smallIcon;
+		this.largeIcon = largeIcon;
+		this.title = title;
+		this.sound = sound;
+	}
+
+	/**
+	 * @return The configuration, or null if it is missing required entries (notifications can
+	 * not be shown then; the reason has been logged the first time).
+	 */
+	static synchronized NotificationConfig get(Context context) {
+		if (!loaded) {
+			instance = load(context);
+			loaded = true;
+		}
+		return instance;
+	}
+
+	private static NotificationConfig load(Context context) {
+		Bundle metaData;
+		try {
+			ApplicationInfo ai = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+			metaData = ai.metaData != null ? ai.metaData : new Bundle();
+		} catch (PackageManager.NameNotFoundException e) {
+			Log.w(TAG, "Failed to read the notification configuration", e);
+			return null;
+		}
+		int smallIcon = metaData.getInt("cotc.GcmNotificationIcon", NO_ICON);
+		if (smallIcon == NO_ICON) {
+			Log.e(TAG, "!!!!!!!!! cotc.GcmNotificationIcon not configured in manifest, push notifications won't work !!!!!!!!!");
+			return null;
+		}
+		int largeIcon = metaData.getInt("cotc.GcmNotificationLargeIcon", NO_ICON);
+		if (largeIcon == NO_ICON) {
+			Log.e(TAG, "There is no large icon for push notifs, will only use default icon");
+		}
+		String title = metaData.getString("cotc.GcmNotificationTitle");
+		if (title == null) {
+			Log.e(TAG, "!!!!!!!!! cotc.GcmNotificationTitle not configured in manifest, push notifications won't work !!!!!!!!!");
+			return null;
+		}
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			NotificationManager notifManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+			NotificationChannel channel = new NotificationChannel(CHANNEL_ID, CHANNEL_ID, NotificationManager.IMPORTANCE_HIGH);
+			channel.setDescription(CHANNEL_ID);
+			notifManager.createNotificationChannel(channel);
+		}
+		Uri sound = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+		return new NotificationConfig(smallIcon, largeIcon, title, sound);
+	}
+}
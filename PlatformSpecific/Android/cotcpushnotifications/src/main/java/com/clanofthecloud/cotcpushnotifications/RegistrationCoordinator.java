@@ -0,0 +1,208 @@
+package com.clanofthecloud.cotcpushnotifications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.google.android.gms.gcm.GcmPubSub;
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.google.android.gms.iid.InstanceID;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the registrations with GCM, one at a time, on its own thread.
+ * Requests received while an attempt is in progress are merged into it (a forced refresh runs
+ * once more afterwards, as the token obtained may already be outdated). Attempts failing with an
+ * IOException (network, GCM unavailable) are retried with an exponential backoff and some jitter,
+ * up to MAX_ATTEMPTS. The final outcome is sent to the game through Controller.registrationDone.
+ * Pending retries do not survive the process; the next registerForNotifications starts over.
+ */
+class RegistrationCoordinator {
+	private static final String TAG = "CotcPushRegistration";
+	private static final String[] TOPICS = {"global"};
+	// Delay before the first retry, doubled for each following one
+	private static final long INITIAL_BACKOFF_MS = 5 * 1000;
+	private static final long MAX_BACKOFF_MS = 30 * 60 * 1000;
+	// Number of attempts made before reporting a transient error as final
+	private static final int MAX_ATTEMPTS = 8;
+	// The thread is released after this delay without any attempt pending
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	private static RegistrationCoordinator instance;
+
+	private final Context mContext;
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final Random mRandom = new Random();
+	// All guarded by this
+	private Future<?> mCurrent;
+	private boolean mRunning, mForceRefresh, mRunAgain;
+	private int mFailedAttempts;
+
+	static synchronized RegistrationCoordinator get(Context context) {
+		if (instance == null) {
+			instance = new RegistrationCoordinator(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private RegistrationCoordinator(Context context) {
+		mContext = context;
+		mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CotcPushRegistration");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Asks for a registration. Merged with the attempt in progress or scheduled, if any.
+	 * @param forceRefresh Get a new token even if the stored one looks up to date.
+	 * @return Future completing with the attempt the request has been merged into (the first one
+	 * if it is retried). Can be waited for to keep the calling service alive meanwhile.
+	 */
+	synchronized Future<?> request(boolean forceRefresh) {
+		if (mRunning) {
+			if (forceRefresh) {
+				mRunAgain = true;
+			}
+			return mCurrent;
+		}
+		mForceRefresh |= forceRefresh;
+		if (mCurrent != null) {
+			// A retry is scheduled; the new request is a good reason not to wait any longer
+			if (!mCurrent.cancel(false)) {
+				// Too late, it is starting and will pick up the request
+				return mCurrent;
+			}
+			mFailedAttempts = 0;
+		}
+		mCurrent = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				attempt();
+			}
+		});
+		return mCurrent;
+	}
+
+	private void attempt() {
+		boolean forceRefresh;
+		synchronized (this) {
+			mRunning = true;
+			forceRefresh = mForceRefresh;
+			mForceRefresh = false;
+		}
+		String token = null, error = null;
+		boolean retriable = false;
+		try {
+			token = register(forceRefresh);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to register for push notifications", e);
+			error = e.toString();
+			retriable = true;
+		} catch (Exception e) {
+			Log.w(TAG, "Failed to register for push notifications", e);
+			error = e.toString();
+		}
+
+		boolean report = true;
+		synchronized (this) {
+			mRunning = false;
+			mCurrent = null;
+			if (token != null) {
+				mFailedAttempts = 0;
+				if (mRunAgain) {
+					mRunAgain = false;
+					request(true);
+				}
+			} else if (retriable && ++mFailedAttempts < MAX_ATTEMPTS) {
+				long delay = backoffDelay(mFailedAttempts);
+				Log.v(TAG, "Retrying registration in " + delay + " ms (attempt " + (mFailedAttempts + 1) + ")");
+				// A refresh requested in the meantime is honored by the retry
+				mForceRefresh |= forceRefresh || mRunAgain;
+				mRunAgain = false;
+				mCurrent = mExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						attempt();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+				report = false;
+			} else {
+				mFailedAttempts = 0;
+				mRunAgain = false;
+			}
+		}
+		if (report) {
+			Controller.registrationDone(token, error);
+		}
+	}
+
+	/**
+	 * @param failedAttempts Number of attempts failed so far (at least 1).
+	 * @return Delay before the next attempt: half of it is the exponential backoff, the other half
+	 * is random, so that devices which failed together do not retry together.
+	 */
+	private long backoffDelay(int failedAttempts) {
+		long base = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (failedAttempts - 1));
+		return base / 2 + (long) (mRandom.nextDouble() * (base / 2));
+	}
+
+	/**
+	 * Obtains the token and subscribes it to the topics, unless the stored registration is up to
+	 * date. Blocking.
+	 * @return The registration token.
+	 */
+	private String register(boolean forceRefresh) throws Exception {
+		TokenStore store = TokenStore.get(mContext);
+		PackageManager pm = mContext.getPackageManager();
+		ApplicationInfo ai = pm.getApplicationInfo(mContext.getPackageName(), PackageManager.GET_META_DATA);
+		Object senderId = ai.metaData.get("cotc.GcmSenderId");
+		if (senderId == null) {
+			Log.e(TAG, "!!!!!!!!! cotc.GcmSenderId not configured in manifest, push notifications won't work !!!!!!!!!");
+			senderId = "";
+		}
+		int appVersion = pm.getPackageInfo(mContext.getPackageName(), 0).versionCode;
+		if (!forceRefresh && store.isUpToDate(senderId.toString(), appVersion, TOPICS)) {
+			// Registered by a previous run already, nothing to ask the network
+			Log.v(TAG, "Using stored GCM Registration Token");
+			return store.getToken();
+		}
+		// Initially this call goes out to the network to retrieve the token, subsequent calls
+		// are local.
+		InstanceID instanceID = InstanceID.getInstance(mContext);
+		Log.v(TAG, "Using senderId: " + senderId.toString());
+		String token = instanceID.getToken(senderId.toString(),
+			GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
+		if (token == null) {
+			throw new IOException("No token returned by InstanceID");
+		}
+		Log.v(TAG, "GCM Registration Token: " + token);
+
+		// Subscribe to topic channels, keeping track of those done in case one fails
+		Set<String> subscribed = store.subscribedTopics(token);
+		try {
+			for (String topic : TOPICS) {
+				if (!subscribed.contains(topic)) {
+					GcmPubSub.getInstance(mContext).subscribe(token, "/topics/" + topic, null);
+					subscribed.add(topic);
+				}
+			}
+		} finally {
+			store.save(token, senderId.toString(), appVersion, subscribed);
+		}
+		return token;
+	}
+}
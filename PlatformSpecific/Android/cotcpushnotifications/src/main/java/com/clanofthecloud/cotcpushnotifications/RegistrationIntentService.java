@@ -18,24 +18,20 @@ package com.clanofthecloud.cotcpushnotifications;
 
 import android.app.IntentService;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.preference.PreferenceManager;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import com.google.android.gms.gcm.GcmPubSub;
-import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.google.android.gms.iid.InstanceID;
-
-import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Entry point of the registrations. The work is done by the RegistrationCoordinator; the service
+ * waits for the attempt, so that the process is kept alive while talking to the network.
+ */
 public class RegistrationIntentService extends IntentService {
 
     private static final String TAG = "RegIntentService";
-    private static final String[] TOPICS = {"global"};
-    private static String registrationToken;
+    /** Boolean extra: get a new token even if the stored one looks up to date (token refresh). */
+    static final String EXTRA_FORCE_REFRESH = "forceRefresh";
 
     public RegistrationIntentService() {
         super(TAG);
@@ -43,61 +39,15 @@ public class RegistrationIntentService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        boolean forceRefresh = intent != null && intent.getBooleanExtra(EXTRA_FORCE_REFRESH, false);
         try {
-            // In the (unlikely) event that multiple refresh operations occur simultaneously,
-            // ensure that they are processed sequentially.
-            synchronized (TAG) {
-                // [START register_for_gcm]
-                // Initially this call goes out to the network to retrieve the token, subsequent calls
-                // are local.
-                // [START get_token]
-                InstanceID instanceID = InstanceID.getInstance(this);
-                ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-                Object senderId = ai.metaData.get("cotc.GcmSenderId");
-                if (senderId == null) {
-                    Log.e(TAG, "!!!!!!!!! cotc.GcmSenderId not configured in manifest, push notifications won't work !!!!!!!!!");
-                    senderId = "";
-                }
-                Log.v(TAG, "Using senderId: " + senderId.toString());
-                String token = instanceID.getToken(senderId.toString(),
-                        GoogleCloudMessaging.INSTANCE_ID_SCOPE, null);
-                // [END get_token]
-                Log.v(TAG, "GCM Registration Token: " + token);
-
-                registrationToken = token;
-
-                // Subscribe to topic channels
-                subscribeTopics(token);
-                // [END register_for_gcm]
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "Failed to complete token refresh", e);
-            // If an exception happens while fetching the new token or updating our registration data
-            // on a third-party server, this ensures that we'll attempt the update at a later time.
-//            sharedPreferences.edit().putBoolean(QuickstartPreferences.SENT_TOKEN_TO_SERVER, false).apply();
+            RegistrationCoordinator.get(this).request(forceRefresh).get();
+        } catch (CancellationException e) {
+            // Replaced by a newer attempt
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Registration attempt failed unexpectedly", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        // Notify UI that registration has completed, so the progress indicator can be hidden.
-        Intent registrationComplete = new Intent(Controller.REGISTRATION_COMPLETE);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(registrationComplete);
     }
-
-    public static String getRegistrationToken() {
-        return registrationToken;
-    }
-
-    /**
-     * Subscribe to any GCM topics of interest, as defined by the TOPICS constant.
-     *
-     * @param token GCM token
-     * @throws IOException if unable to reach the GCM PubSub service
-     */
-    // [START subscribe_topics]
-    private void subscribeTopics(String token) throws IOException {
-        for (String topic : TOPICS) {
-            GcmPubSub pubSub = GcmPubSub.getInstance(this);
-            pubSub.subscribe(token, "/topics/" + topic, null);
-        }
-    }
-    // [END subscribe_topics]
-
 }
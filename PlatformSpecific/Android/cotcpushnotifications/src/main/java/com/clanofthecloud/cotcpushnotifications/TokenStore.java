@@ -0,0 +1,82 @@
+package com.clanofthecloud.cotcpushnotifications;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Outcome of the last registration, persisted in the shared preferences of the application so that
+ * the token is known right away after a restart. The registration only needs to go to the network
+ * again when the app has been updated, the sender ID has changed, a topic is missing, or when the
+ * InstanceID provider asks for a refresh.
+ */
+class TokenStore {
+	private static final String PREFS_NAME = "cotc_push_registration";
+	private static final String KEY_TOKEN = "token";
+	private static final String KEY_SENDER_ID = "senderId";
+	private static final String KEY_APP_VERSION = "appVersion";
+	private static final String KEY_TOPICS = "topics";
+	private static TokenStore instance;
+
+	private final SharedPreferences mPrefs;
+	private String mToken, mSenderId;
+	private int mAppVersion;
+	private Set<String> mTopics;
+
+	static synchronized TokenStore get(Context context) {
+		if (instance == null) {
+			instance = new TokenStore(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private TokenStore(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		mToken = mPrefs.getString(KEY_TOKEN, null);
+		mSenderId = mPrefs.getString(KEY_SENDER_ID, null);
+		mAppVersion = mPrefs.getInt(KEY_APP_VERSION, -1);
+		// The returned set must not be modified
+		mTopics = new HashSet<String>(mPrefs.getStringSet(KEY_TOPICS, new HashSet<String>()));
+	}
+
+	/** @return The last token obtained, or null if none yet. */
+	synchronized String getToken() {
+		return mToken;
+	}
+
+	/**
+	 * @return Whether the stored token has been obtained for this sender and version of the app, and
+	 * subscribed to all these topics. If so, there is no need to register again.
+	 */
+	synchronized boolean isUpToDate(String senderId, int appVersion, String[] topics) {
+		return mToken != null && senderId.equals(mSenderId) && appVersion == mAppVersion
+			&& mTopics.containsAll(Arrays.asList(topics));
+	}
+
+	/**
+	 * @return Copy of the topics the token has been subscribed to; empty if it is not the stored one.
+	 */
+	synchronized Set<String> subscribedTopics(String token) {
+		return token.equals(mToken) ? new HashSet<String>(mTopics) : new HashSet<String>();
+	}
+
+	/**
+	 * Records the outcome of a registration (possibly partial, if only some topics could be
+	 * subscribed to).
+	 */
+	synchronized void save(String token, String senderId, int appVersion, Set<String> topics) {
+		mToken = token;
+		mSenderId = senderId;
+		mAppVersion = appVersion;
+		mTopics = new HashSet<String>(topics);
+		mPrefs.edit()
+			.putString(KEY_TOKEN, token)
+			.putString(KEY_SENDER_ID, senderId)
+			.putInt(KEY_APP_VERSION, appVersion)
+			.putStringSet(KEY_TOPICS, mTopics)
+			.apply();
+	}
+}
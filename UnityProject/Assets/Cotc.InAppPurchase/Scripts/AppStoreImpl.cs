@@ -135,6 +135,32 @@ namespace CotcSdk.InappPurchase {
 			return LastTerminatePurchasePromise;
 		}
 
+		Promise<List<CotcException>> IStore.TerminatePurchases(List<PurchasedProduct> products) {
+			// The native code terminates one purchase at a time
+			var promise = new Promise<List<CotcException>>();
+			TerminateNextPurchase(products, new List<CotcException>(), promise);
+			return promise;
+		}
+
+		private void TerminateNextPurchase(List<PurchasedProduct> products, List<CotcException> results, Promise<List<CotcException>> promise) {
+			if (results.Count == products.Count) {
+				promise.Resolve(results);
+				return;
+			}
+			(this as IStore).TerminatePurchase(products[results.Count]).Done(done => {
+				results.Add(null);
+				TerminateNextPurchase(products, results, promise);
+			}, ex => {
+				results.Add(ex as CotcException ?? new CotcException(ErrorCode.InternalError, ex.Message));
+				TerminateNextPurchase(products, results, promise);
+			});
+		}
+
+		Bundle IStore.GetMetrics(bool reset) {
+			// Not measured by the native code on this platform
+			return Bundle.CreateObject();
+		}
+
 		// Callback from native code
 		void IStore.TerminatePurchase_Done(string message) {
 			// Extract promise and allow again
@@ -147,6 +173,20 @@ namespace CotcSdk.InappPurchase {
 			promise.Resolve(new Done(true, Bundle.Empty));
 		}
 
+		void IStore.TerminatePurchases_Done(string message) {
+			// Not sent by the native code on this platform, see TerminatePurchases
+		}
+
+		List<PurchasedProduct> IStore.ParsePendingPurchases(string message) {
+			// Pending purchases are not looked for on this platform
+			return new List<PurchasedProduct>();
+		}
+
+		List<ProductInfo> IStore.ParseUpdatedProducts(string message) {
+			// Products are always fetched from the store on this platform, they are never updated
+			return new List<ProductInfo>();
+		}
+
 		/// <summary>Parses an error coming from an unity message sent from Android.</summary>
 		/// <param name="bundle">error as received from Android, parsed to JSON.</param>
 		/// <returns>an exception</returns>
@@ -6,6 +6,51 @@ namespace CotcSdk.InappPurchase {
 	
 	public class CotcInappPurchaseGameObject : MonoBehaviour {
 
+		/// <summary>
+		/// License key of the application, as found in the Google Play console (base64-encoded). When set,
+		/// purchases not signed by Google Play are rejected on the device, before being reported. Receipts
+		/// still need to be validated with #CotcSdk.GamerStore.ValidateReceipt.
+		/// Only supported on Android.
+		/// </summary>
+		public string PublicKey;
+
+		/// <summary>
+		/// Whether to look for purchases left pending (see #PendingPurchasesFound) when the game starts.
+		/// Only supported on Android.
+		/// </summary>
+		public bool RecoverPendingPurchases = false;
+
+		/// <summary>
+		/// Whether to connect to the billing service in the background when the game starts, so that the
+		/// shop opens faster. Disable it to only connect when the store is first used.
+		/// Only supported on Android.
+		/// </summary>
+		public bool WarmUp = true;
+
+		/// <summary>
+		/// Raised once after startup, if #RecoverPendingPurchases is set, with the purchases that have been
+		/// paid for but whose transaction was never closed (e.g. the game was killed before
+		/// #CloseTransaction). Like the result of #LaunchPurchase, they are to be validated with
+		/// #CotcSdk.GamerStore.ValidateReceipt, then closed with #CloseTransactions. The CotC product ID,
+		/// price and currency are not known for these purchases. Not raised if there are none.
+		/// </summary>
+		public event Action<List<PurchasedProduct>> PendingPurchasesFound;
+
+		/// <summary>
+		/// Whether to keep the product information on disk, so that #FetchProductInfo can answer right away
+		/// after the game starts, without waiting for the store. Information answered that way may be
+		/// outdated: it is checked in the background and #ProductInfoUpdated is raised if it has changed.
+		/// Only supported on Android.
+		/// </summary>
+		public bool UseProductSnapshot = false;
+
+		/// <summary>
+		/// Raised when product information returned by #FetchProductInfo came from the snapshot kept on
+		/// disk (see #UseProductSnapshot) and the store has returned something different since. Contains
+		/// the up to date information, to be shown instead.
+		/// </summary>
+		public event Action<List<ProductInfo>> ProductInfoUpdated;
+
 		private IStore Store;
 
 		void Start() {
@@ -13,7 +58,7 @@ namespace CotcSdk.InappPurchase {
 			Store = null;
 			Debug.LogError("In-app purchase not available on this platform");
 #elif UNITY_ANDROID
-			Store = new GooglePlayStoreImpl(gameObject.name);
+			Store = new GooglePlayStoreImpl(gameObject.name, PublicKey, RecoverPendingPurchases, WarmUp, UseProductSnapshot);
 #elif UNITY_IPHONE
 			Store = new AppStoreImpl(gameObject.name);
 #elif UNITY_EDITOR_OSX
@@ -37,6 +82,16 @@ namespace CotcSdk.InappPurchase {
 			return Store.TerminatePurchase(product);
 		}
 
+		/// <summary>
+		/// Same as #CloseTransaction for several products at once, e.g. to close the transactions left
+		/// open after a failure. Much faster than closing them one by one on Android.
+		/// </summary>
+		/// <returns>promise resolved when all transactions have been processed, with one entry per
+		/// product, in the same order: null if the transaction has been closed, the error otherwise.</returns>
+		public Promise<List<CotcException>> CloseTransactions(List<PurchasedProduct> products) {
+			return Store.TerminatePurchases(products);
+		}
+
 		/// <summary>
 		/// Enriches a catalog fetched by #CotcSdk.GamerStore.ListConfiguredProducts with price
 		/// information and such.
@@ -63,6 +118,19 @@ namespace CotcSdk.InappPurchase {
 			return Store.LaunchPurchaseFlow(gamer, info);
 		}
 
+		/// <summary>
+		/// Returns the latency and outcome of each phase of the purchase process since the start of the
+		/// game (or the last reset), e.g. to be sent along with the telemetry of the game. On Android,
+		/// contains one object per phase (listProducts, launchPurchase, skuDetails, etc.) with the `count`,
+		/// the number of `errors` by code, and the `mean`, `p50`, `p95`, `p99` and `max` latencies in
+		/// milliseconds. Empty on other platforms.
+		/// </summary>
+		/// <param name="reset">pass true to clear the metrics once read, so that the next call only
+		/// covers what happened since.</param>
+		public Bundle GetMetrics(bool reset = false) {
+			return Store.GetMetrics(reset);
+		}
+
 #if UNITY_ANDROID || UNITY_IPHONE
 		// Got from the GooglePlayStoreImpl when GetInformationAboutProducts calls back
 		void GetInformationAboutProducts_Done(string message) {
@@ -77,6 +145,26 @@ namespace CotcSdk.InappPurchase {
 		void TerminatePurchase_Done(string message) {
 			Store.TerminatePurchase_Done(message);
 		}
+
+		void TerminatePurchases_Done(string message) {
+			Store.TerminatePurchases_Done(message);
+		}
+
+		void GetInformationAboutProducts_Updated(string message) {
+			List<ProductInfo> products = Store.ParseUpdatedProducts(message);
+			if (ProductInfoUpdated != null) {
+				ProductInfoUpdated(products);
+			}
+		}
+
+		void PendingPurchases_Found(string message) {
+			List<PurchasedProduct> purchases = Store.ParsePendingPurchases(message);
+			if (PendingPurchasesFound == null) {
+				Debug.LogWarning(purchases.Count + " pending purchases found but nobody listens to PendingPurchasesFound");
+				return;
+			}
+			PendingPurchasesFound(purchases);
+		}
 #endif
 	}
 }
@@ -9,26 +9,41 @@ namespace CotcSdk.InappPurchase {
 	class GooglePlayStoreImpl: IStore {
 
 		private AndroidJavaClass JavaClass;
-		private Promise<List<ProductInfo>> LastGetInformationAboutProductsPromise;
+		// Requests in progress, by request ID (passed to Java and echoed back in the callbacks)
+		private Dictionary<string, Promise<List<ProductInfo>>> PendingGetInformationAboutProducts = new Dictionary<string, Promise<List<ProductInfo>>>();
+		private Dictionary<string, Promise<Done>> PendingTerminatePurchases = new Dictionary<string, Promise<Done>>();
+		private Dictionary<string, Promise<List<CotcException>>> PendingTerminatePurchasesBatches = new Dictionary<string, Promise<List<CotcException>>>();
+		// Only one purchase flow can be shown at a time
+		private string LastLaunchProductRequestId;
 		private Promise<PurchasedProduct> LastLaunchProductPromise;
-		private Promise<Done> LastTerminatePurchasePromise;
+		private int LastRequestId;
 
 		// GameObjectName is used for callbacks from Java
-		public GooglePlayStoreImpl(string gameObjectName) {
+		public GooglePlayStoreImpl(string gameObjectName, string publicKey, bool recoverPendingPurchases, bool warmUp, bool productSnapshot) {
 			JavaClass = new AndroidJavaClass("com.clanofthecloud.cotcinapppurchase.Store");
 			if (JavaClass == null) {
 				throw new InvalidOperationException("com.clanofthecloud.cotcinapppurchase.Store java class failed to load; check that the AAR is included properly in Assets/Plugins/Android");
 			}
-			JavaClass.CallStatic("startup", gameObjectName);
+			Bundle options = Bundle.CreateObject();
+			// Connect to the billing service in the background so that the shop opens faster
+			options["warmUp"] = warmUp;
+			// Purchases not signed with this key are rejected on the device
+			if (!string.IsNullOrEmpty(publicKey)) {
+				options["publicKey"] = publicKey;
+			}
+			// Calls back the CotcInappPurchaseGameObject with PendingPurchases_Found if there are any
+			options["recoverPendingPurchases"] = recoverPendingPurchases;
+			// Product listings may then be answered from disk, then updated through GetInformationAboutProducts_Updated
+			options["productSnapshot"] = productSnapshot;
+			JavaClass.CallStatic("startup", gameObjectName, options.ToJson());
 		}
 
 		Promise<List<ProductInfo>> IStore.GetInformationAboutProducts(List<ConfiguredProduct> products) {
-			// Already in progress? Refuse immediately.
+			var promise = new Promise<List<ProductInfo>>();
+			string requestId;
 			lock (this) {
-				if (LastGetInformationAboutProductsPromise != null) {
-					return Promise<List<ProductInfo>>.Rejected(new CotcException(ErrorCode.AlreadyInProgress, "Listing products"));
-				}
-				LastGetInformationAboutProductsPromise = new Promise<List<ProductInfo>>();
+				requestId = NextRequestId();
+				PendingGetInformationAboutProducts[requestId] = promise;
 			}
 
 			// Serialize for Android (passed as a JSON string)
@@ -38,65 +53,81 @@ namespace CotcSdk.InappPurchase {
 			}
 
 			// Will call back the CotcInappPurchaseGameObject
-			JavaClass.CallStatic("listProducts", interop.ToJson());
-			return LastGetInformationAboutProductsPromise;
+			JavaClass.CallStatic("listProducts", requestId, interop.ToJson());
+			return promise;
 		}
 
 		// Callback from native code
 		void IStore.GetInformationAboutProducts_Done(string message) {
+			Bundle json = Bundle.FromJson(message);
 			// Extract promise and allow again
-			Promise<List<ProductInfo>> promise;
-			lock (this) {
-				promise = LastGetInformationAboutProductsPromise;
-				LastGetInformationAboutProductsPromise = null;
-			}
-			
+			Promise<List<ProductInfo>> promise = TakePending(PendingGetInformationAboutProducts, json);
 			if (promise == null) {
 				Debug.LogWarning("Responding to GetInformationAboutProducts without having promise set");
+				return;
 			}
 
-			Bundle json = Bundle.FromJson(message);
 			// Error
 			if (json.Has("error")) {
 				promise.Reject(ParseError(json));
 				return;
 			}
-			
-			List<ProductInfo> result = new List<ProductInfo>();
-			foreach (Bundle obj in json["products"].AsArray()) {
-				result.Add(new ProductInfo(obj));
+			// Partial result: some products could not be fetched from the store
+			if (json.Has("errors")) {
+				foreach (Bundle error in json["errors"].AsArray()) {
+					Common.LogWarning("Failed to fetch information about some products: " + error["description"].AsString());
+				}
 			}
-			promise.Resolve(result);
+
+			promise.Resolve(ParseProducts(json));
+		}
+
+		// Callback from native code, following a GetInformationAboutProducts_Done answered from the snapshot
+		List<ProductInfo> IStore.ParseUpdatedProducts(string message) {
+			return ParseProducts(Bundle.FromJson(message));
 		}
 
 		Promise<PurchasedProduct> IStore.LaunchPurchaseFlow(Gamer gamer, ProductInfo product) {
+			string requestId;
 			// Already in progress? Refuse immediately.
 			lock (this) {
 				if (LastLaunchProductPromise != null) {
 					return Promise<PurchasedProduct>.Rejected(new CotcException(ErrorCode.AlreadyInProgress, "Launching purchase"));
 				}
 				LastLaunchProductPromise = new Promise<PurchasedProduct>();
+				LastLaunchProductRequestId = requestId = NextRequestId();
 			}
 
 			// Will call back the CotcInappPurchaseGameObject
-			JavaClass.CallStatic("launchPurchase", product.ToJson());
+			JavaClass.CallStatic("launchPurchase", requestId, product.ToJson());
 			return LastLaunchProductPromise;
 		}
 
 		// Callback from native code
 		void IStore.LaunchPurchase_Done(string message) {
+			Bundle json = Bundle.FromJson(message);
 			// Extract promise and allow again
 			Promise<PurchasedProduct> promise;
 			lock (this) {
+				// A duplicate request being refused must not complete the purchase in progress
+				if (json.Has("duplicateOf")) {
+					Debug.LogWarning("Duplicate LaunchPurchase request refused: " + json["duplicateOf"].AsString());
+					return;
+				}
+				if (json.Has("requestId") && json["requestId"].AsString() != LastLaunchProductRequestId) {
+					Debug.LogWarning("Ignoring LaunchPurchase response for unknown request " + json["requestId"].AsString());
+					return;
+				}
 				promise = LastLaunchProductPromise;
 				LastLaunchProductPromise = null;
+				LastLaunchProductRequestId = null;
 			}
-			
+
 			if (promise == null) {
 				Debug.LogWarning("Responding to LaunchPurchase without having promise set");
+				return;
 			}
-			
-			Bundle json = Bundle.FromJson(message);
+
 			if (json.Has("error")) {
 				promise.Reject(ParseError(json));
 				return;
@@ -110,12 +141,11 @@ namespace CotcSdk.InappPurchase {
 		}
 
 		Promise<Done> IStore.TerminatePurchase(PurchasedProduct product) {
-			// Already in progress? Refuse immediately.
+			var promise = new Promise<Done>();
+			string requestId;
 			lock (this) {
-				if (LastTerminatePurchasePromise != null) {
-					return Promise<Done>.Rejected(new CotcException(ErrorCode.AlreadyInProgress, "Terminating purchase"));
-				}
-				LastTerminatePurchasePromise = new Promise<Done>();
+				requestId = NextRequestId();
+				PendingTerminatePurchases[requestId] = promise;
 			}
 
 			Bundle arg = Bundle.CreateObject();
@@ -123,22 +153,125 @@ namespace CotcSdk.InappPurchase {
 			arg["internalProductId"] = product.InternalProductId;
 
 			// Will call back the CotcInappPurchaseGameObject
-			JavaClass.CallStatic("terminatePurchase", arg.ToJson());
-			return LastTerminatePurchasePromise;
+			JavaClass.CallStatic("terminatePurchase", requestId, arg.ToJson());
+			return promise;
 		}
 
 		// Callback from native code
 		void IStore.TerminatePurchase_Done(string message) {
+			Bundle json = Bundle.FromJson(message);
 			// Extract promise and allow again
-			Promise<Done> promise;
-			lock (this) {
-				promise = LastTerminatePurchasePromise;
-				LastTerminatePurchasePromise = null;
+			Promise<Done> promise = TakePending(PendingTerminatePurchases, json);
+			if (promise == null) {
+				Debug.LogWarning("Responding to TerminatePurchase without having promise set");
+				return;
 			}
 
+			if (json.Has("error")) {
+				promise.Reject(ParseError(json));
+				return;
+			}
 			promise.Resolve(new Done(true, Bundle.Empty));
 		}
 
+		Promise<List<CotcException>> IStore.TerminatePurchases(List<PurchasedProduct> products) {
+			var promise = new Promise<List<CotcException>>();
+			string requestId;
+			lock (this) {
+				requestId = NextRequestId();
+				PendingTerminatePurchasesBatches[requestId] = promise;
+			}
+
+			Bundle interop = Bundle.CreateArray();
+			foreach (PurchasedProduct product in products) {
+				Bundle arg = Bundle.CreateObject();
+				arg["token"] = product.Token;
+				arg["internalProductId"] = product.InternalProductId;
+				interop.Add(arg);
+			}
+
+			// Will call back the CotcInappPurchaseGameObject
+			JavaClass.CallStatic("terminatePurchases", requestId, interop.ToJson());
+			return promise;
+		}
+
+		// Callback from native code
+		void IStore.TerminatePurchases_Done(string message) {
+			Bundle json = Bundle.FromJson(message);
+			Promise<List<CotcException>> promise = TakePending(PendingTerminatePurchasesBatches, json);
+			if (promise == null) {
+				Debug.LogWarning("Responding to TerminatePurchases without having promise set");
+				return;
+			}
+
+			if (json.Has("error")) {
+				promise.Reject(ParseError(json));
+				return;
+			}
+			// Results come in the order of the products passed
+			List<CotcException> result = new List<CotcException>();
+			foreach (Bundle obj in json["results"].AsArray()) {
+				result.Add(obj.Has("error") ? ParseError(obj) : null);
+			}
+			promise.Resolve(result);
+		}
+
+		// Callback from native code
+		List<PurchasedProduct> IStore.ParsePendingPurchases(string message) {
+			Bundle json = Bundle.FromJson(message);
+			List<PurchasedProduct> result = new List<PurchasedProduct>();
+			// The CotC product, price and currency are not known for these purchases
+			foreach (Bundle obj in json["purchases"].AsArray()) {
+				result.Add(new PurchasedProduct(
+					Common.ParseEnum<StoreType>(obj["store"], StoreType.Googleplay),
+					null, obj["internalProductId"], 0, null, obj["receipt"], obj["token"]));
+			}
+			return result;
+		}
+
+		Bundle IStore.GetMetrics(bool reset) {
+			Bundle metrics = Bundle.FromJson(JavaClass.CallStatic<string>("getMetrics"));
+			if (reset) {
+				JavaClass.CallStatic("resetMetrics");
+			}
+			return metrics;
+		}
+
+		/// <summary>Generates an ID used to match a request with its callback from Java.</summary>
+		private string NextRequestId() {
+			return "r" + (++LastRequestId);
+		}
+
+		/// <summary>Removes and returns the promise of the request a callback from Java relates to.</summary>
+		/// <param name="pending">requests in progress for the operation.</param>
+		/// <param name="json">message received from Java, containing the request ID.</param>
+		/// <returns>the promise or null if the request is unknown.</returns>
+		private Promise<T> TakePending<T>(Dictionary<string, Promise<T>> pending, Bundle json) {
+			// A duplicate request being refused must not complete the one in progress
+			if (json.Has("duplicateOf")) {
+				Debug.LogWarning("Duplicate request refused: " + json["duplicateOf"].AsString());
+				return null;
+			}
+			lock (this) {
+				Promise<T> promise;
+				string requestId = json["requestId"];
+				if (requestId == null || !pending.TryGetValue(requestId, out promise)) {
+					return null;
+				}
+				pending.Remove(requestId);
+				return promise;
+			}
+		}
+
+		/// <summary>Parses the products listed in a message sent from Android.</summary>
+		private List<ProductInfo> ParseProducts(Bundle json) {
+			List<ProductInfo> result = new List<ProductInfo>();
+			foreach (Bundle obj in json["products"].AsArray()) {
+				result.Add(new ProductInfo(obj));
+			}
+			return result;
+		}
+
 		/// <summary>Parses an error coming from an unity message sent from Android.</summary>
 		/// <param name="bundle">error as received from Android, parsed to JSON.</param>
 		/// <returns>an exception</returns>
@@ -39,9 +39,28 @@ namespace CotcSdk.InappPurchase {
 		/// <returns>a promise that is resolved when the native operation has completed.</returns>
 		Promise<Done> TerminatePurchase(PurchasedProduct product);
 
+		/// <summary>
+		/// Completes the purchase process of several products at once, such as the ones left pending
+		/// after a failure. Each product is terminated independently of the others.
+		/// </summary>
+		/// <param name="products">products as returned by LaunchPurchaseFlow.</param>
+		/// <returns>a promise resolved when all products have been processed, with one entry per product,
+		/// in the same order: null if it has been terminated, the error otherwise.</returns>
+		Promise<List<CotcException>> TerminatePurchases(List<PurchasedProduct> products);
+
+		/// <summary>
+		/// Returns the latency and outcome of each phase of the purchase process measured by the native
+		/// implementation, or an empty object if it does not measure them.
+		/// </summary>
+		/// <param name="reset">whether to clear the metrics once read.</param>
+		Bundle GetMetrics(bool reset);
+
 		// ------------- Callback messages used by some native implementations -------------
 		void GetInformationAboutProducts_Done(string message);
 		void LaunchPurchase_Done(string message);
 		void TerminatePurchase_Done(string message);
+		void TerminatePurchases_Done(string message);
+		List<PurchasedProduct> ParsePendingPurchases(string message);
+		List<ProductInfo> ParseUpdatedProducts(string message);
 	}
 }
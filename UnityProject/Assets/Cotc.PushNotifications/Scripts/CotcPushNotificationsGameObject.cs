@@ -22,7 +22,8 @@ namespace CotcSdk.PushNotifications {
 				Common.LogError("com.clanofthecloud.cotcpushnotifications.Controller java class failed to load; check that the AAR is included properly in Assets/Plugins/Android");
 				return;
 			}
-			JavaClass.CallStatic("startup");
+			// Registration results are sent back to this game object (see OnRegistrationDone)
+			JavaClass.CallStatic("startup", gameObject.name);
 #endif
 			Cotc.LoggedIn += Cotc_DidLogin;
 			Cotc.GotDomainLoopEvent += Cotc_GotDomainLoopEvent;
@@ -32,14 +33,33 @@ namespace CotcSdk.PushNotifications {
 			Cotc.LoggedIn -= Cotc_DidLogin;
 		}
 
+#if UNITY_IPHONE
 		void Update() {
-			var token = GetToken();
-			// Achieved the registration
-			if (token != null && ShouldSendToken) {
-				FinishedRegistering(token);
-				ShouldSendToken = false;
+			// iOS does not tell when the token is available
+			if (ShouldSendToken) {
+				var token = GetToken();
+				// Achieved the registration
+				if (token != null) {
+					FinishedRegistering(token);
+					ShouldSendToken = false;
+				}
 			}
 		}
+#endif
+
+#if UNITY_ANDROID
+		// Callback from native code, once the registration started by registerForNotifications (or a token refresh) is over
+		void OnRegistrationDone(string message) {
+			Bundle result = Bundle.FromJson(message);
+			if (result.Has("error")) {
+				Common.LogError("Failed to register for push notifications: " + result["error"].AsString());
+				return;
+			}
+			if (RegisteredGamer != null) {
+				FinishedRegistering(result["token"].AsString());
+			}
+		}
+#endif
 
 		void Cotc_GotDomainLoopEvent(DomainEventLoop sender, EventLoopArgs args) {
 			// When we receive a message, it means that the pending notification has been approved, so reset the application badge
@@ -57,16 +77,16 @@ namespace CotcSdk.PushNotifications {
 		}
 
 		private void Cotc_DidLogin(object sender, Cotc.LoggedInEventArgs e) {
+			RegisteredGamer = e.Gamer;
 #if UNITY_IPHONE
 			UnityEngine.iOS.NotificationServices.RegisterForNotifications(
 				UnityEngine.iOS.NotificationType.Alert | 
 			    UnityEngine.iOS.NotificationType.Badge | 
 			    UnityEngine.iOS.NotificationType.Sound);
+			ShouldSendToken = true;
 #elif UNITY_ANDROID
 			JavaClass.CallStatic("registerForNotifications");
 #endif
-			ShouldSendToken = true;
-			RegisteredGamer = e.Gamer;
 		}
 
 		private string GetOsName() {
@@ -79,19 +99,15 @@ namespace CotcSdk.PushNotifications {
 #endif
 		}
 
-		private string GetToken() {
 #if UNITY_IPHONE
+		private string GetToken() {
 			var token = UnityEngine.iOS.NotificationServices.deviceToken;
 			if (token != null) {
 				return System.BitConverter.ToString(token).Replace("-", "").ToLower();
 			}
 			return null;
-#elif UNITY_ANDROID
-			return JavaClass.CallStatic<string>("getToken");
-#else
-			return null;
-#endif
 		}
+#endif
 
 		private void FinishedRegistering(string token) {
 			RegisteredGamer.Account.RegisterDevice(GetOsName(), token)
@@ -100,7 +116,9 @@ namespace CotcSdk.PushNotifications {
 				});
 		}
 
+#if UNITY_IPHONE
 		private bool ShouldSendToken = false;
+#endif
 		private Gamer RegisteredGamer;
 #endif
 	}